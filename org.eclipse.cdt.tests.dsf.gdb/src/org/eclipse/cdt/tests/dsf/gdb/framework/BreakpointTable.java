@@ -0,0 +1,288 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IBreakpoints.IBreakpointsTargetDMContext;
+import org.eclipse.cdt.dsf.debug.service.command.ICommand;
+import org.eclipse.cdt.dsf.debug.service.command.IEventListener;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakListInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakpoint;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MINotifyAsyncOutput;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIOOBRecord;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIOutput;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MITuple;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * A live mirror of GDB's breakpoint table.
+ * <p>
+ * The table is filled with a single <code>-break-list</code> when created and
+ * then kept up to date from the <code>=breakpoint-created</code>,
+ * <code>=breakpoint-modified</code> and <code>=breakpoint-deleted</code>
+ * notifications, as well as from the results of the changes made through it
+ * (GDB does not notify the MI client of the changes it requested itself).
+ * Listing the breakpoints or diffing them against a wanted set therefore
+ * never goes to GDB.
+ * <p>
+ * Changes are made in bulk: insertions are pipelined in one executor hop, and
+ * deletions and enablement changes are each a single MI command.
+ */
+public class BreakpointTable {
+
+	/**
+	 * The difference between a wanted set of locations and the table, see
+	 * {@link BreakpointTable#diff(Collection)}.
+	 */
+	public static class Diff {
+		private final List<String> fMissingLocations;
+		private final List<String> fExtraNumbers;
+
+		Diff(List<String> missingLocations, List<String> extraNumbers) {
+			fMissingLocations = missingLocations;
+			fExtraNumbers = extraNumbers;
+		}
+
+		/** Locations that have no breakpoint yet */
+		public List<String> getMissingLocations() {
+			return fMissingLocations;
+		}
+
+		/** Numbers of the breakpoints at locations that are not wanted */
+		public List<String> getExtraNumbers() {
+			return fExtraNumbers;
+		}
+
+		public boolean isEmpty() {
+			return fMissingLocations.isEmpty() && fExtraNumbers.isEmpty();
+		}
+	}
+
+	// Breakpoint numbers are "2", or "2.1" for a location of a multi-location breakpoint
+	private static final Comparator<String> NUMBER_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String n1, String n2) {
+			String[] parts1 = n1.split("\\.");
+			String[] parts2 = n2.split("\\.");
+			for (int i = 0; i < Math.min(parts1.length, parts2.length); i++) {
+				int diff = Integer.compare(Integer.parseInt(parts1[i]), Integer.parseInt(parts2[i]));
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return Integer.compare(parts1.length, parts2.length);
+		}
+	};
+
+	private final Map<String, MIBreakpoint> fBreakpoints = new ConcurrentHashMap<>();
+	private final IBreakpointsTargetDMContext fBpTargetDmc;
+
+	private final IEventListener fListener = new IEventListener() {
+		@Override
+		public void eventReceived(Object output) {
+			for (MIOOBRecord oobr : ((MIOutput) output).getMIOOBRecords()) {
+				if (oobr instanceof MINotifyAsyncOutput) {
+					handleNotification((MINotifyAsyncOutput) oobr);
+				}
+			}
+		}
+	};
+
+	public BreakpointTable() throws Throwable {
+		fBpTargetDmc = SyncUtil.getBreakpointsTargetContext();
+
+		Query<MIBreakListInfo> query = new Query<MIBreakListInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIBreakListInfo> rm) {
+				// Listen before listing so that no notification falls in between
+				SyncUtil.getGdbControl().addEventListener(fListener);
+				SyncUtil.getGdbControl().queueCommand(SyncUtil.getCommandFactory().createMIBreakList(fBpTargetDmc), rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		for (MIBreakpoint bp : query.get(DefaultTimeouts.get(ETimeout.getBreakpointList), TimeUnit.MILLISECONDS)
+				.getMIBreakpoints()) {
+			fBreakpoints.put(bp.getNumber(), bp);
+		}
+	}
+
+	public void dispose() throws InterruptedException, ExecutionException {
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getGdbControl().removeEventListener(fListener);
+			}
+		}).get();
+		fBreakpoints.clear();
+	}
+
+	/**
+	 * @return the breakpoints, ordered by number
+	 */
+	public List<MIBreakpoint> getBreakpoints() {
+		List<MIBreakpoint> breakpoints = new ArrayList<>(fBreakpoints.values());
+		Collections.sort(breakpoints, new Comparator<MIBreakpoint>() {
+			@Override
+			public int compare(MIBreakpoint bp1, MIBreakpoint bp2) {
+				return NUMBER_ORDER.compare(bp1.getNumber(), bp2.getNumber());
+			}
+		});
+		return breakpoints;
+	}
+
+	public MIBreakpoint getBreakpoint(String number) {
+		return fBreakpoints.get(number);
+	}
+
+	public int size() {
+		return fBreakpoints.size();
+	}
+
+	/**
+	 * Insert breakpoints at each of the locations, see
+	 * {@link SyncUtil#addBreakpoints(String[], boolean)}.
+	 *
+	 * @return the breakpoint numbers, in the order of the locations
+	 */
+	public String[] insert(Collection<String> locations, boolean temporary) throws Throwable {
+		MIBreakpoint[] inserted = SyncUtil.insertBreakpoints(locations.toArray(new String[locations.size()]),
+				temporary, DefaultTimeouts.get(ETimeout.addBreakpoint) + locations.size());
+		String[] numbers = new String[inserted.length];
+		for (int i = 0; i < inserted.length; i++) {
+			fBreakpoints.put(inserted[i].getNumber(), inserted[i]);
+			numbers[i] = inserted[i].getNumber();
+		}
+		return numbers;
+	}
+
+	/**
+	 * Delete breakpoints with a single <code>-break-delete</code>.
+	 */
+	public void delete(final Collection<String> numbers) throws Throwable {
+		if (numbers.isEmpty()) {
+			return;
+		}
+		execute(SyncUtil.getCommandFactory().createMIBreakDelete(fBpTargetDmc,
+				numbers.toArray(new String[numbers.size()])));
+		for (String number : numbers) {
+			removeBreakpoint(number);
+		}
+	}
+
+	/**
+	 * Enable or disable breakpoints with a single <code>-break-enable</code>
+	 * or <code>-break-disable</code>.
+	 */
+	public void setEnabled(final Collection<String> numbers, boolean enabled) throws Throwable {
+		if (numbers.isEmpty()) {
+			return;
+		}
+		String[] array = numbers.toArray(new String[numbers.size()]);
+		execute(enabled
+				? SyncUtil.getCommandFactory().createMIBreakEnable(fBpTargetDmc, array)
+				: SyncUtil.getCommandFactory().createMIBreakDisable(fBpTargetDmc, array));
+		for (String number : numbers) {
+			MIBreakpoint bp = fBreakpoints.get(number);
+			if (bp != null) {
+				bp.setEnabled(enabled);
+			}
+		}
+	}
+
+	/**
+	 * Compare the table with a wanted set of locations, as originally given to
+	 * <code>-break-insert</code>, without going to GDB. Only the first
+	 * breakpoint at a wanted location counts; the next ones are extra.
+	 */
+	public Diff diff(Collection<String> locations) {
+		Set<String> wanted = new HashSet<>(locations);
+		Set<String> present = new HashSet<>();
+		List<String> extra = new ArrayList<>();
+		for (MIBreakpoint bp : getBreakpoints()) {
+			if (bp.getNumber().indexOf('.') >= 0) {
+				// A location of a multi-location breakpoint, which goes with it
+				continue;
+			}
+			String location = bp.getOriginalLocation();
+			if (!wanted.contains(location) || !present.add(location)) {
+				extra.add(bp.getNumber());
+			}
+		}
+
+		List<String> missing = new ArrayList<>();
+		for (String location : locations) {
+			if (!present.contains(location)) {
+				missing.add(location);
+			}
+		}
+		return new Diff(missing, extra);
+	}
+
+	/**
+	 * Make GDB have exactly one breakpoint at each of the locations: delete
+	 * the extra ones in one command and insert the missing ones in bulk.
+	 *
+	 * @return the differences that were applied
+	 */
+	public Diff reconcile(Collection<String> locations) throws Throwable {
+		Diff diff = diff(locations);
+		delete(diff.getExtraNumbers());
+		insert(diff.getMissingLocations(), false);
+		return diff;
+	}
+
+	private <V extends MIInfo> void execute(final ICommand<V> command) throws Throwable {
+		Query<V> query = new Query<V>() {
+			@Override
+			protected void execute(DataRequestMonitor<V> rm) {
+				SyncUtil.getGdbControl().queueCommand(command, rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		query.get(DefaultTimeouts.get(ETimeout.addBreakpoint), TimeUnit.MILLISECONDS);
+	}
+
+	private void handleNotification(MINotifyAsyncOutput notification) {
+		String asyncClass = notification.getAsyncClass();
+		MIResult[] results = notification.getMIResults();
+		if ("breakpoint-created".equals(asyncClass) || "breakpoint-modified".equals(asyncClass)) {
+			MIValue value = MIResultsUtil.getValue(results, "bkpt");
+			if (value instanceof MITuple) {
+				MIBreakpoint bp = new MIBreakpoint((MITuple) value);
+				fBreakpoints.put(bp.getNumber(), bp);
+			}
+		} else if ("breakpoint-deleted".equals(asyncClass)) {
+			String number = MIResultsUtil.getString(results, "id");
+			if (number != null) {
+				removeBreakpoint(number);
+			}
+		}
+	}
+
+	private void removeBreakpoint(String number) {
+		fBreakpoints.remove(number);
+		// Along with its locations, if it has several
+		fBreakpoints.keySet().removeIf(key -> key.startsWith(number + "."));
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(getBreakpoints().toArray());
+	}
+}
@@ -0,0 +1,48 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakpoint;
+
+import tde.debug.TestplanBreakpointSynchronizer;
+
+/**
+ * The GDB side of a {@link TestplanBreakpointSynchronizer}: the breakpoints
+ * it installs go through a {@link BreakpointTable}, which also tells which of
+ * them GDB still has without asking it.
+ */
+public class BreakpointTableTarget implements TestplanBreakpointSynchronizer.BreakpointTarget {
+
+	private final BreakpointTable fTable;
+
+	public BreakpointTableTarget(BreakpointTable table) {
+		fTable = table;
+	}
+
+	@Override
+	public Boolean isEnabled(String number) {
+		MIBreakpoint bp = fTable.getBreakpoint(number);
+		return bp != null ? bp.isEnabled() : null;
+	}
+
+	@Override
+	public String[] insert(List<String> locations) throws Throwable {
+		return fTable.insert(locations, false);
+	}
+
+	@Override
+	public void delete(Collection<String> numbers) throws Throwable {
+		fTable.delete(numbers);
+	}
+
+	@Override
+	public void setEnabled(Collection<String> numbers, boolean enabled) throws Throwable {
+		fTable.setEnabled(numbers, enabled);
+	}
+
+	@Override
+	public String toString() {
+		return fTable.toString();
+	}
+}
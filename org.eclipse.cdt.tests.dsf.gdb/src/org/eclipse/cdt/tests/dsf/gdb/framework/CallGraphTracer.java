@@ -0,0 +1,270 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.command.ICommand;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.tests.dsf.gdb.framework.CollectionProbes.Probe;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * Records which functions call which, and how often, without stopping the
+ * test at each call.
+ * <p>
+ * Like <code>rbreak</code>, {@link #trace(String)} selects the functions
+ * whose name matches a regular expression, but instead of breakpoints it puts
+ * a {@link CollectionProbes} probe on the entry of each of them. The probe
+ * logs the name of the caller, which a small GDB Python function,
+ * <code>$_caller_name()</code>, reads from the frame above; GDB resumes the
+ * program by itself. The tracer has its own {@link CollectionProbes}, which
+ * can live beside those of the test, as probe ids are unique across
+ * instances; only the records of its own probes are folded.
+ * {@link #update()} folds the logged calls into the graph: function names
+ * are numbered once, and each edge is a pair of numbers with a count.
+ * <p>
+ * Requires a GDB built with Python.
+ */
+public class CallGraphTracer {
+
+	private static final String CALLER_FUNCTION = "python exec(\""
+			+ "class _CallerName(gdb.Function):\\n"
+			+ "    def __init__(self):\\n"
+			+ "        super(_CallerName, self).__init__('_caller_name')\\n"
+			+ "    def invoke(self):\\n"
+			+ "        f = gdb.selected_frame().older()\\n"
+			+ "        return '' if f is None else (f.name() or hex(f.pc()))\\n"
+			+ "_CallerName()\")";
+
+	/**
+	 * A caller to callee edge.
+	 */
+	public static class Edge {
+		private final String fCaller;
+		private final String fCallee;
+		private final long fCount;
+
+		Edge(String caller, String callee, long count) {
+			fCaller = caller;
+			fCallee = callee;
+			fCount = count;
+		}
+
+		/**
+		 * @return the calling function, or an empty string for the outermost
+		 *         frame
+		 */
+		public String getCaller() {
+			return fCaller;
+		}
+
+		public String getCallee() {
+			return fCallee;
+		}
+
+		public long getCount() {
+			return fCount;
+		}
+
+		@Override
+		public String toString() {
+			return fCaller + " -> " + fCallee + " " + fCount;
+		}
+	}
+
+	private final CollectionProbes fProbes;
+	private final List<Probe> fTraced = new ArrayList<>();
+	// The probe of each traced function gives the callee
+	private final Map<Probe, Integer> fCallees = new HashMap<>();
+
+	private final Map<String, Integer> fIds = new HashMap<>();
+	private final List<String> fNames = new ArrayList<>();
+	// Keyed by caller id in the high half and callee id in the low half
+	private final Map<Long, long[]> fEdges = new HashMap<>();
+	private long fCalls;
+
+	/**
+	 * @param capacity
+	 *            the number of calls that can wait for {@link #update()}; calls
+	 *            beyond that are dropped and counted
+	 */
+	public CallGraphTracer(int capacity) throws Throwable {
+		fProbes = new CollectionProbes(capacity);
+		execute(SyncUtil.getCommandFactory().createMIInterpreterExecConsole(SyncUtil.getGdbControl().getContext(),
+				CALLER_FUNCTION));
+	}
+
+	/**
+	 * Trace the calls to the functions with debug information whose name
+	 * matches the regular expression.
+	 *
+	 * @return the functions now traced
+	 */
+	public synchronized List<String> trace(String regex) throws Throwable {
+		MIInfo info = execute(new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-symbol-info-functions",
+				new String[] { "--name", regex }, new String[0]));
+		Set<String> functions = new LinkedHashSet<>();
+		MIResult[] symbols = MIResultsUtil.getTuple(
+				MIResultsUtil.getValue(MIResultsUtil.getResults(info), "symbols"));
+		for (MIValue file : MIResultsUtil.getListElements(MIResultsUtil.getValue(symbols, "debug"))) {
+			for (MIValue symbol : MIResultsUtil.getListElements(
+					MIResultsUtil.getValue(MIResultsUtil.getTuple(file), "symbols"))) {
+				String name = MIResultsUtil.getString(MIResultsUtil.getTuple(symbol), "name");
+				if (name != null) {
+					functions.add(name);
+				}
+			}
+		}
+		for (Probe probe : fTraced) {
+			functions.remove(probe.getLocation());
+		}
+		if (functions.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		List<String> locations = new ArrayList<>(functions);
+		List<Probe> probes = fProbes.add(locations, "%s", "$_caller_name()");
+		for (Probe probe : probes) {
+			fTraced.add(probe);
+			fCallees.put(probe, getId(probe.getLocation()));
+		}
+		return locations;
+	}
+
+	/**
+	 * Fold the calls logged since the last update into the graph.
+	 *
+	 * @return the number of calls folded
+	 */
+	public synchronized int update() {
+		List<ProbeRecord> records = new ArrayList<>();
+		fProbes.drainTo(records);
+		for (ProbeRecord record : records) {
+			fold(record);
+		}
+		return records.size();
+	}
+
+	/**
+	 * Wait until no call has been logged for a while, folding them in as
+	 * they come.
+	 *
+	 * @param quiet
+	 *            in milliseconds
+	 */
+	public void awaitQuiet(long quiet) throws InterruptedException {
+		while (true) {
+			ProbeRecord first = fProbes.poll(quiet, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				update();
+				return;
+			}
+			synchronized (this) {
+				fold(first);
+				update();
+			}
+		}
+	}
+
+	public synchronized List<Edge> getEdges() {
+		List<Edge> edges = new ArrayList<>(fEdges.size());
+		for (Map.Entry<Long, long[]> entry : fEdges.entrySet()) {
+			long key = entry.getKey();
+			edges.add(new Edge(fNames.get((int) (key >>> 32)), fNames.get((int) key), entry.getValue()[0]));
+		}
+		return edges;
+	}
+
+	/**
+	 * @return the number of calls to the function, from any caller
+	 */
+	public synchronized long getCallCount(String function) {
+		Integer callee = fIds.get(function);
+		if (callee == null) {
+			return 0;
+		}
+		long calls = 0;
+		for (Map.Entry<Long, long[]> entry : fEdges.entrySet()) {
+			if ((int) (long) entry.getKey() == callee) {
+				calls += entry.getValue()[0];
+			}
+		}
+		return calls;
+	}
+
+	/**
+	 * @return the number of calls folded so far
+	 */
+	public synchronized long getTotalCallCount() {
+		return fCalls;
+	}
+
+	/**
+	 * @return the number of calls lost because {@link #update()} was not
+	 *         called often enough
+	 */
+	public long getDroppedCount() {
+		return fProbes.getDroppedCount();
+	}
+
+	/**
+	 * Stop tracing; the graph is kept.
+	 */
+	public synchronized void dispose() throws Throwable {
+		fProbes.dispose();
+		fTraced.clear();
+		fCallees.clear();
+	}
+
+	private void fold(ProbeRecord record) {
+		Integer callee = fCallees.get(record.getProbe());
+		if (callee == null) {
+			return;
+		}
+		long key = ((long) getId(record.getValue(0)) << 32) | callee;
+		long[] count = fEdges.get(key);
+		if (count == null) {
+			fEdges.put(key, new long[] { 1 });
+		} else {
+			count[0]++;
+		}
+		fCalls++;
+	}
+
+	private int getId(String name) {
+		Integer id = fIds.get(name);
+		if (id == null) {
+			id = fNames.size();
+			fIds.put(name, id);
+			fNames.add(name);
+		}
+		return id;
+	}
+
+	private static MIInfo execute(final ICommand<MIInfo> command) throws Throwable {
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(command, rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		return query.get(DefaultTimeouts.get(ETimeout.addBreakpoint), TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return fTraced.size() + " functions, " + fEdges.size() + " edges, " + fCalls + " calls";
+	}
+}
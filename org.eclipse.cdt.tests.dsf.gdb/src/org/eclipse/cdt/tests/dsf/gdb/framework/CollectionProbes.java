@@ -0,0 +1,364 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IBreakpoints.IBreakpointsTargetDMContext;
+import org.eclipse.cdt.dsf.debug.service.command.IEventListener;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakInsertInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIConsoleStreamOutput;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIOOBRecord;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIOutput;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * Collects values at code locations without stopping the test, using
+ * <code>-dprintf-insert</code>.
+ * <p>
+ * Each probe logs its expressions to the GDB console, as one line starting
+ * with a record marker and the probe id and whose fields are separated by a
+ * marker. Both are printable, as GDB escapes control characters in the MI
+ * console records and not every version of the MI parser decodes them. Probe
+ * ids are unique across instances, since every instance sees the lines of
+ * all of them. The lines are picked out of the console stream records as
+ * they arrive and queued as {@link ProbeRecord}s, so a hit costs no MI
+ * command at all, instead of a breakpoint stop, an evaluation and a resume.
+ * With the default <code>dprintf-style gdb</code> the target still stops
+ * briefly in GDB, which formats the values and resumes it on its own.
+ * <p>
+ * The queue is bounded: records that arrive while it is full are dropped
+ * and counted, as the console output is read on the session executor, which
+ * must not block.
+ */
+public class CollectionProbes {
+
+	private static final String RECORD_START = "@cdt@";
+	private static final String FIELD_SEPARATOR = "@|@";
+	// Shared by all instances, whose listeners each parse every record
+	private static final AtomicInteger fNextId = new AtomicInteger();
+
+	/**
+	 * A location with the expressions logged on each hit.
+	 */
+	public static class Probe {
+		private final int fId;
+		private final String fLocation;
+		private final String[] fExpressions;
+		private volatile String fNumber;
+
+		Probe(int id, String location, String[] expressions) {
+			fId = id;
+			fLocation = location;
+			fExpressions = expressions;
+		}
+
+		public String getLocation() {
+			return fLocation;
+		}
+
+		public String[] getExpressions() {
+			return fExpressions.clone();
+		}
+
+		/**
+		 * @return the number of the GDB dprintf breakpoint
+		 */
+		public String getNumber() {
+			return fNumber;
+		}
+
+		@Override
+		public String toString() {
+			return fLocation + Arrays.toString(fExpressions);
+		}
+	}
+
+	/**
+	 * <code>-dprintf-insert</code> with its parameters as MI c-strings, so
+	 * that the escapes of the format reach GDB as written.
+	 */
+	private static class DPrintfInsert extends MICommand<MIBreakInsertInfo> {
+		DPrintfInsert(IBreakpointsTargetDMContext ctx, String location, String format, String[] expressions) {
+			super(ctx, "-dprintf-insert", concat(location, format, expressions));
+		}
+
+		@Override
+		protected String parametersToString() {
+			StringBuilder buffer = new StringBuilder();
+			for (String parameter : getParameters()) {
+				if (buffer.length() > 0) {
+					buffer.append(' ');
+				}
+				appendCString(buffer, parameter);
+			}
+			return buffer.toString();
+		}
+
+		@Override
+		public MIBreakInsertInfo getResult(MIOutput output) {
+			return new MIBreakInsertInfo(output);
+		}
+
+		private static String[] concat(String location, String format, String[] expressions) {
+			String[] parameters = new String[expressions.length + 2];
+			parameters[0] = location;
+			parameters[1] = format;
+			System.arraycopy(expressions, 0, parameters, 2, expressions.length);
+			return parameters;
+		}
+	}
+
+	private final BlockingQueue<ProbeRecord> fRecords;
+	private final Map<Integer, Probe> fProbes = new ConcurrentHashMap<>();
+	private final AtomicLong fDropped = new AtomicLong();
+	private final IBreakpointsTargetDMContext fBpTargetDmc;
+	// Console output not yet ending with a new line, only used on the executor
+	private final StringBuilder fPending = new StringBuilder();
+
+	private final IEventListener fListener = new IEventListener() {
+		@Override
+		public void eventReceived(Object output) {
+			for (MIOOBRecord oobr : ((MIOutput) output).getMIOOBRecords()) {
+				if (oobr instanceof MIConsoleStreamOutput) {
+					handleConsoleOutput(((MIConsoleStreamOutput) oobr).getString());
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param capacity
+	 *            the number of records that can wait to be taken
+	 */
+	public CollectionProbes(int capacity) throws Throwable {
+		fRecords = new ArrayBlockingQueue<>(capacity);
+		fBpTargetDmc = SyncUtil.getBreakpointsTargetContext();
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getGdbControl().addEventListener(fListener);
+			}
+		}).get();
+	}
+
+	/**
+	 * Log the expressions each time the location is reached.
+	 *
+	 * @param conversions
+	 *            one printf conversion per expression, separated by spaces,
+	 *            e.g. <code>"%d %s"</code>
+	 */
+	public Probe add(String location, String conversions, String... expressions) throws Throwable {
+		return add(Collections.singletonList(location), conversions, expressions).get(0);
+	}
+
+	/**
+	 * Log the same expressions at each of the locations, with all the
+	 * <code>-dprintf-insert</code> commands queued at once.
+	 *
+	 * @return the probes, in the order of the locations
+	 */
+	public List<Probe> add(List<String> locations, String conversions, final String... expressions)
+			throws Throwable {
+		String[] formats = conversions.trim().split("\\s+");
+		if (formats.length != expressions.length) {
+			throw new IllegalArgumentException(
+					formats.length + " conversions for " + expressions.length + " expressions");
+		}
+
+		final List<Probe> probes = new ArrayList<>(locations.size());
+		final List<String> dprintfFormats = new ArrayList<>(locations.size());
+		for (String location : locations) {
+			Probe probe = new Probe(fNextId.incrementAndGet(), location, expressions.clone());
+			StringBuilder format = new StringBuilder().append(RECORD_START).append(probe.fId);
+			for (String f : formats) {
+				format.append(FIELD_SEPARATOR).append(f);
+			}
+			dprintfFormats.add(format.append('\n').toString());
+			// Registered first, so that no hit is missed
+			fProbes.put(probe.fId, probe);
+			probes.add(probe);
+		}
+
+		Query<Object> query = new Query<Object>() {
+			@Override
+			protected void execute(DataRequestMonitor<Object> rm) {
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm);
+				for (int i = 0; i < probes.size(); i++) {
+					final Probe probe = probes.get(i);
+					SyncUtil.getGdbControl().queueCommand(
+							new DPrintfInsert(fBpTargetDmc, probe.fLocation, dprintfFormats.get(i), expressions),
+							new ImmediateDataRequestMonitor<MIBreakInsertInfo>(crm) {
+								@Override
+								protected void handleSuccess() {
+									probe.fNumber = getData().getMIBreakpoints()[0].getNumber();
+									crm.done();
+								}
+							});
+				}
+				crm.setDoneCount(probes.size());
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		try {
+			query.get(DefaultTimeouts.get(ETimeout.addBreakpoint) + probes.size(), TimeUnit.MILLISECONDS);
+		} catch (Throwable e) {
+			List<Probe> inserted = new ArrayList<>();
+			for (Probe probe : probes) {
+				if (probe.fNumber != null) {
+					inserted.add(probe);
+				} else {
+					fProbes.remove(probe.fId);
+				}
+			}
+			remove(inserted);
+			throw e;
+		}
+		return probes;
+	}
+
+	/**
+	 * Remove probes with a single <code>-break-delete</code>.
+	 */
+	public void remove(Collection<Probe> probes) throws Throwable {
+		final List<String> numbers = new ArrayList<>();
+		for (Probe probe : probes) {
+			if (fProbes.remove(probe.fId) != null) {
+				numbers.add(probe.fNumber);
+			}
+		}
+		if (numbers.isEmpty()) {
+			return;
+		}
+
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(SyncUtil.getCommandFactory().createMIBreakDelete(fBpTargetDmc,
+						numbers.toArray(new String[numbers.size()])), rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		query.get(DefaultTimeouts.get(ETimeout.deleteBreakpoint), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the next record, or <code>null</code> if none arrived in time
+	 */
+	public ProbeRecord poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return fRecords.poll(timeout, unit);
+	}
+
+	/**
+	 * Move the records received so far to the collection.
+	 *
+	 * @return the number of records moved
+	 */
+	public int drainTo(Collection<? super ProbeRecord> records) {
+		return fRecords.drainTo(records);
+	}
+
+	/**
+	 * @return the number of records lost because the queue was full
+	 */
+	public long getDroppedCount() {
+		return fDropped.get();
+	}
+
+	/**
+	 * Remove the probes and stop listening to the console.
+	 */
+	public void dispose() throws Throwable {
+		remove(new ArrayList<>(fProbes.values()));
+		try {
+			SyncUtil.getSession().getExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					SyncUtil.getGdbControl().removeEventListener(fListener);
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+		fRecords.clear();
+	}
+
+	private void handleConsoleOutput(String text) {
+		fPending.append(text);
+		int start = 0;
+		int end;
+		while ((end = fPending.indexOf("\n", start)) >= 0) {
+			String line = fPending.substring(start, end);
+			if (line.startsWith(RECORD_START)) {
+				handleRecord(line.substring(RECORD_START.length()));
+			}
+			start = end + 1;
+		}
+		fPending.delete(0, start);
+		String pending = fPending.toString();
+		if (!pending.startsWith(RECORD_START) && !RECORD_START.startsWith(pending)) {
+			// Not ours, no need to wait for the end of the line
+			fPending.setLength(0);
+		}
+	}
+
+	private void handleRecord(String line) {
+		String[] fields = line.split(Pattern.quote(FIELD_SEPARATOR), -1);
+		Probe probe;
+		try {
+			probe = fProbes.get(Integer.parseInt(fields[0]));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (probe == null || fields.length != probe.fExpressions.length + 1) {
+			return;
+		}
+
+		ProbeRecord record = new ProbeRecord(probe, Arrays.copyOfRange(fields, 1, fields.length), System.nanoTime());
+		if (!fRecords.offer(record)) {
+			fDropped.incrementAndGet();
+		}
+	}
+
+	private static void appendCString(StringBuilder buffer, String value) {
+		buffer.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				buffer.append('\\').append(c);
+			} else if (c == '\n') {
+				buffer.append("\\n");
+			} else if (c < ' ') {
+				buffer.append(String.format("\\%03o", (int) c));
+			} else {
+				buffer.append(c);
+			}
+		}
+		buffer.append('"');
+	}
+
+	@Override
+	public String toString() {
+		return fProbes.values().toString();
+	}
+}
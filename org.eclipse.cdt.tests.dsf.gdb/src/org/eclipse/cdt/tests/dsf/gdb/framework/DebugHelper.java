@@ -3,10 +3,8 @@ package org.eclipse.cdt.tests.dsf.gdb.framework;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import org.eclipse.cdt.debug.core.CDIDebugModel;
 import org.eclipse.cdt.debug.core.model.ICBreakpointType;
@@ -15,8 +13,10 @@ import org.eclipse.cdt.debug.core.model.ICLineBreakpoint;
 import org.eclipse.cdt.debug.internal.core.breakpoints.CFunctionBreakpoint;
 import org.eclipse.cdt.debug.internal.core.breakpoints.CLineBreakpoint;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.debug.core.DebugPlugin;
 import org.eclipse.debug.core.IBreakpointManager;
 import org.eclipse.debug.core.ILaunch;
@@ -30,6 +30,8 @@ import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.WorkbenchException;
 
+import tde.debug.PlatformBreakpointRegistry;
+
 @SuppressWarnings("restriction")
 public class DebugHelper {
 	
@@ -48,22 +50,38 @@ public class DebugHelper {
 				ICBreakpointType.REGULAR, linenum, true, 0, "", true);
 	}
 	
-	private static List<IBreakpoint> getPlatformBreakpoints(Predicate<IBreakpoint> predicate) {
-		return Arrays.asList(DebugPlugin.getDefault().getBreakpointManager().getBreakpoints()).stream()
-				.filter(predicate).collect(Collectors.toList());
+	/**
+	 * Create a line breakpoint that only stops when the condition holds, after
+	 * ignoring its first <code>ignoreCount</code> hits. See
+	 * {@link LaunchGDB#ATTR_BREAKPOINT_CONDITION_EVALUATION} to have the
+	 * condition evaluated by gdbserver; the ignored hits are always counted by
+	 * GDB.
+	 */
+	public static ICLineBreakpoint createLineBreakpoint(String filename, int linenum, String condition,
+			int ignoreCount) throws CoreException {
+		return CDIDebugModel.createLineBreakpoint(
+				filename, getResource(),
+				ICBreakpointType.REGULAR, linenum, true, ignoreCount, condition, true);
 	}
 	
 	public static List<IBreakpoint> getPlatformCFunctionBreakpoints() {
-		return getPlatformBreakpoints(CFunctionBreakpoint.class::isInstance);
+		return PlatformBreakpointRegistry.getDefault().getBreakpoints(CFunctionBreakpoint.class);
 	}
 	
 	public static List<IBreakpoint> getPlatformCLineBreakpoints() {
-		return getPlatformBreakpoints(CLineBreakpoint.class::isInstance);
+		return PlatformBreakpointRegistry.getDefault().getBreakpoints(CLineBreakpoint.class);
+	}
+	
+	public static List<ICLineBreakpoint> getPlatformLineBreakpoints(String filename) {
+		return PlatformBreakpointRegistry.getDefault().getLineBreakpoints(filename);
+	}
+	
+	public static List<ICLineBreakpoint> getPlatformLineBreakpoints(String filename, int linenum) {
+		return PlatformBreakpointRegistry.getDefault().getLineBreakpoints(filename, linenum);
 	}
 	
 	public static List<IBreakpoint> getAllPlatformBreakpoints() {
-		return Arrays.asList(DebugPlugin.getDefault().getBreakpointManager().getBreakpoints()).stream().
-		collect(Collectors.toList());
+		return PlatformBreakpointRegistry.getDefault().getAllBreakpoints();
 	}
 	
   	public static void deleteAllPlatformBreakpoints() throws Exception {
@@ -74,13 +92,29 @@ public class DebugHelper {
   	}
   	
   	public static void toggleAllPlatformBreakpoints(Boolean enabled) throws CoreException {
-  		List<IBreakpoint> list = getAllPlatformBreakpoints();
-  		for (IBreakpoint bp : list) 
-  		{
-  			if (bp.isEnabled() != enabled) {
-  				bp.setEnabled(enabled);
+  		setPlatformBreakpointsEnabled(getAllPlatformBreakpoints(), enabled);
+  	}
+  	
+  	/**
+  	 * Enable or disable many breakpoints in a single workspace operation, so
+  	 * that their marker changes are reported in one resource delta, and one
+  	 * breakpoint manager notification, instead of one per breakpoint. The
+  	 * debugger updates triggered by the notification then reach GDB back to
+  	 * back.
+  	 */
+  	public static void setPlatformBreakpointsEnabled(final Collection<? extends IBreakpoint> breakpoints,
+  			final boolean enabled) throws CoreException {
+  		IWorkspaceRunnable runnable = new IWorkspaceRunnable() {
+  			@Override
+  			public void run(IProgressMonitor monitor) throws CoreException {
+  				for (IBreakpoint bp : breakpoints) {
+  					if (bp.isEnabled() != enabled) {
+  						bp.setEnabled(enabled);
+  					}
+  				}
   			}
-  		}
+  		};
+  		ResourcesPlugin.getWorkspace().run(runnable, getResource(), 0, null);
   	}
   	
   	public static void printAllBreakpointType() {
@@ -0,0 +1,274 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.concurrent.RequestMonitor;
+import org.eclipse.cdt.dsf.debug.service.IExpressions;
+import org.eclipse.cdt.dsf.debug.service.IExpressions.IExpressionChangedDMEvent;
+import org.eclipse.cdt.dsf.debug.service.IExpressions.IExpressionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IExpressions.IExpressionDMData;
+import org.eclipse.cdt.dsf.debug.service.IFormattedValues;
+import org.eclipse.cdt.dsf.debug.service.IFormattedValues.FormattedValueDMData;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IResumedDMEvent;
+import org.eclipse.cdt.dsf.service.DsfServiceEventHandler;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * Per-stop cache of formatted expression values.
+ * <p>
+ * {@link #getValues(IExpressionDMContext[], String...)} fetches every
+ * requested format of a whole set of expressions in one executor hop, with
+ * the requests pipelined to GDB. When an expression has an integer type and
+ * its natural value is a plain non-negative integer, the decimal, hexadecimal
+ * and octal formats are computed locally from it instead of being fetched.
+ * <p>
+ * The cache is cleared whenever the target resumes or an expression is
+ * written. A request that spans such a change still returns what it fetched,
+ * but does not add it to the cache. Call {@link #dispose()} once done with it.
+ */
+public class FormattedValueCache {
+
+	private static final Pattern UNSIGNED_INTEGER = Pattern.compile("[0-9]+"); //$NON-NLS-1$
+	// Integer types by name, once qualifiers are dropped; a typedef that is
+	// not in the list is fetched rather than derived
+	private static final Pattern INTEGER_TYPE = Pattern.compile(
+			"(char|short|int|long|long long|short int|long int|long long int|__int128|wchar_t|char16_t|char32_t" //$NON-NLS-1$
+					+ "|size_t|ssize_t|ptrdiff_t|intptr_t|uintptr_t|u?int(8|16|32|64)_t)"); //$NON-NLS-1$
+	private static final Pattern TYPE_QUALIFIER = Pattern.compile("\\b(const|volatile|signed|unsigned)\\b"); //$NON-NLS-1$
+
+	// Only accessed on the DSF executor
+	private final Map<IExpressionDMContext, Map<String, String>> fValues = new HashMap<>();
+	// Bumped on each invalidation, so that requests spanning one do not cache
+	// their values
+	private int fGeneration;
+
+	public FormattedValueCache() throws InterruptedException, ExecutionException {
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getSession().addServiceEventListener(FormattedValueCache.this, null);
+			}
+		}).get();
+	}
+
+	public void dispose() throws InterruptedException, ExecutionException {
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getSession().removeServiceEventListener(FormattedValueCache.this);
+				clear();
+			}
+		}).get();
+	}
+
+	/**
+	 * Get the value of an expression in one format, using the cache.
+	 */
+	public String getValue(IExpressionDMContext exprDmc, String formatId) throws Throwable {
+		return getValues(new IExpressionDMContext[] { exprDmc }, formatId).get(exprDmc).get(formatId);
+	}
+
+	/**
+	 * Get the values of a set of expressions in several formats at once.
+	 * Values already in the cache are not fetched again.
+	 *
+	 * @param exprDmcs the expressions
+	 * @param formatIds the {@link IFormattedValues} format ids wanted for each
+	 *        expression
+	 * @return for each expression, its values keyed by format id
+	 */
+	public Map<IExpressionDMContext, Map<String, String>> getValues(final IExpressionDMContext[] exprDmcs,
+			final String... formatIds) throws Throwable {
+		Query<Map<IExpressionDMContext, Map<String, String>>> query = new Query<Map<IExpressionDMContext, Map<String, String>>>() {
+			@Override
+			protected void execute(final DataRequestMonitor<Map<IExpressionDMContext, Map<String, String>>> rm) {
+				// Filled from the cache, then by the fetches; published once
+				// complete, unless the cache was invalidated meanwhile
+				final int generation = fGeneration;
+				final Map<IExpressionDMContext, Map<String, String>> fetched = new HashMap<>();
+				final Map<IExpressionDMContext, Boolean> integers = new HashMap<>();
+				for (IExpressionDMContext exprDmc : exprDmcs) {
+					Map<String, String> cached = fValues.get(exprDmc);
+					fetched.put(exprDmc, cached != null ? new HashMap<>(cached) : new HashMap<String, String>());
+				}
+				fetchNaturalAndOtherFormats(exprDmcs, formatIds, fetched, integers, new ImmediateRequestMonitor(rm) {
+					@Override
+					protected void handleSuccess() {
+						// Whatever could not be derived from the natural value
+						fetchMissingFormats(exprDmcs, formatIds, fetched, integers, new ImmediateRequestMonitor(rm) {
+							@Override
+							protected void handleSuccess() {
+								if (generation == fGeneration) {
+									fValues.putAll(fetched);
+								}
+								Map<IExpressionDMContext, Map<String, String>> result = new LinkedHashMap<>();
+								for (IExpressionDMContext exprDmc : exprDmcs) {
+									Map<String, String> values = new LinkedHashMap<>();
+									for (String formatId : formatIds) {
+										values.put(formatId, fetched.get(exprDmc).get(formatId));
+									}
+									result.put(exprDmc, values);
+								}
+								rm.done(result);
+							}
+						});
+					}
+				});
+			}
+		};
+
+		SyncUtil.getSession().getExecutor().execute(query);
+		return query.get(DefaultTimeouts.get(ETimeout.getFormattedValue), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drop every cached value. This is done automatically when the target
+	 * resumes.
+	 */
+	public void invalidate() throws InterruptedException, ExecutionException {
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				clear();
+			}
+		}).get();
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IResumedDMEvent event) {
+		clear();
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IExpressionChangedDMEvent event) {
+		clear();
+	}
+
+	private void clear() {
+		fGeneration++;
+		fValues.clear();
+	}
+
+	private void fetchNaturalAndOtherFormats(IExpressionDMContext[] exprDmcs, String[] formatIds,
+			Map<IExpressionDMContext, Map<String, String>> fetched, Map<IExpressionDMContext, Boolean> integers,
+			RequestMonitor rm) {
+		CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm);
+		int count = 0;
+		for (IExpressionDMContext exprDmc : exprDmcs) {
+			Map<String, String> values = fetched.get(exprDmc);
+			if (!values.containsKey(IFormattedValues.NATURAL_FORMAT)) {
+				fetch(exprDmc, IFormattedValues.NATURAL_FORMAT, values, crm);
+				count++;
+			}
+			boolean derivable = false;
+			for (String formatId : formatIds) {
+				if (values.containsKey(formatId)) {
+					continue;
+				}
+				if (isDerivable(formatId)) {
+					derivable = true;
+				} else {
+					fetch(exprDmc, formatId, values, crm);
+					count++;
+				}
+			}
+			if (derivable) {
+				// Whether the natural value may be taken for an integer
+				fetchIsInteger(exprDmc, integers, crm);
+				count++;
+			}
+		}
+		crm.setDoneCount(count);
+	}
+
+	private void fetchMissingFormats(IExpressionDMContext[] exprDmcs, String[] formatIds,
+			Map<IExpressionDMContext, Map<String, String>> fetched, Map<IExpressionDMContext, Boolean> integers,
+			RequestMonitor rm) {
+		CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm);
+		int count = 0;
+		for (IExpressionDMContext exprDmc : exprDmcs) {
+			Map<String, String> values = fetched.get(exprDmc);
+			String natural = values.get(IFormattedValues.NATURAL_FORMAT);
+			BigInteger raw = Boolean.TRUE.equals(integers.get(exprDmc)) && natural != null
+					&& UNSIGNED_INTEGER.matcher(natural).matches() ? new BigInteger(natural) : null;
+
+			for (String formatId : formatIds) {
+				if (values.containsKey(formatId)) {
+					continue;
+				}
+				if (raw != null) {
+					values.put(formatId, derive(raw, formatId));
+				} else {
+					fetch(exprDmc, formatId, values, crm);
+					count++;
+				}
+			}
+		}
+		crm.setDoneCount(count);
+	}
+
+	private void fetch(IExpressionDMContext exprDmc, final String formatId, final Map<String, String> values,
+			RequestMonitor rm) {
+		IExpressions expressions = SyncUtil.getExpressions();
+		expressions.getFormattedExpressionValue(expressions.getFormattedValueContext(exprDmc, formatId),
+				new ImmediateDataRequestMonitor<FormattedValueDMData>(rm) {
+					@Override
+					protected void handleSuccess() {
+						values.put(formatId, getData().getFormattedValue());
+						super.handleSuccess();
+					}
+				});
+	}
+
+	private void fetchIsInteger(final IExpressionDMContext exprDmc, final Map<IExpressionDMContext, Boolean> integers,
+			RequestMonitor rm) {
+		SyncUtil.getExpressions().getExpressionData(exprDmc, new ImmediateDataRequestMonitor<IExpressionDMData>(rm) {
+			@Override
+			protected void handleSuccess() {
+				integers.put(exprDmc, isIntegerType(getData().getTypeName()));
+				super.handleSuccess();
+			}
+		});
+	}
+
+	private static boolean isIntegerType(String typeName) {
+		if (typeName == null || typeName.trim().isEmpty()) {
+			return false;
+		}
+		String type = TYPE_QUALIFIER.matcher(typeName).replaceAll(" ").trim().replaceAll("\\s+", " "); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		// "unsigned" alone is an unsigned int
+		return type.isEmpty() || INTEGER_TYPE.matcher(type).matches();
+	}
+
+	private static boolean isDerivable(String formatId) {
+		return IFormattedValues.DECIMAL_FORMAT.equals(formatId)
+				|| IFormattedValues.HEX_FORMAT.equals(formatId)
+				|| IFormattedValues.OCTAL_FORMAT.equals(formatId);
+	}
+
+	/*
+	 * Format a non-negative integer the way GDB does for the given format.
+	 */
+	private static String derive(BigInteger raw, String formatId) {
+		if (IFormattedValues.HEX_FORMAT.equals(formatId)) {
+			return "0x" + raw.toString(16); //$NON-NLS-1$
+		}
+		if (IFormattedValues.OCTAL_FORMAT.equals(formatId)) {
+			return raw.signum() == 0 ? "0" : "0" + raw.toString(8); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return raw.toString();
+	}
+}
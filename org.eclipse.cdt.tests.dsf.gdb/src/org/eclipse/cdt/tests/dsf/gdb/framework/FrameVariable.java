@@ -0,0 +1,52 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import org.eclipse.cdt.dsf.debug.service.IStack.IVariableDMData;
+
+/**
+ * A local variable or argument of a frame, as returned by
+ * <code>-stack-list-variables</code>.
+ */
+public class FrameVariable implements IVariableDMData {
+	private final String fName;
+	private final String fType;
+	private final String fValue;
+	private final boolean fArgument;
+
+	FrameVariable(String name, String type, String value, boolean argument) {
+		fName = name;
+		fType = type;
+		fValue = value;
+		fArgument = argument;
+	}
+
+	@Override
+	public String getName() {
+		return fName;
+	}
+
+	/**
+	 * @return the type, only known when simple values were requested, as
+	 *         they always are when streaming
+	 */
+	public String getType() {
+		return fType;
+	}
+
+	/**
+	 * @return the value, as far as GDB printed it, or <code>null</code> if it was
+	 *         not fetched
+	 */
+	@Override
+	public String getValue() {
+		return fValue;
+	}
+
+	public boolean isArgument() {
+		return fArgument;
+	}
+
+	@Override
+	public String toString() {
+		return fName + "=" + fValue;
+	}
+}
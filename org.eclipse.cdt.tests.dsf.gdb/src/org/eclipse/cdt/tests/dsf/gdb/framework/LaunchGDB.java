@@ -62,6 +62,12 @@ public class LaunchGDB {
 	protected static final String SOURCE_PATH = "E:/workspace/gdb-debug/org.eclipse.cdt.tests.dsf.gdb/data/launch/src/";
 	
 	public static final String ATTR_DEBUG_SERVER_NAME = TestsPlugin.PLUGIN_ID + ".DEBUG_SERVER_NAME";
+	// Where GDB evaluates breakpoint conditions, one of the CONDITION_EVALUATION_* values
+	public static final String ATTR_BREAKPOINT_CONDITION_EVALUATION = TestsPlugin.PLUGIN_ID + ".BREAKPOINT_CONDITION_EVALUATION";
+	public static final String CONDITION_EVALUATION_AUTO = "auto";
+	public static final String CONDITION_EVALUATION_HOST = "host";
+	// Have gdbserver evaluate the conditions, so that a false condition does not stop the target
+	public static final String CONDITION_EVALUATION_TARGET = "target";
 	private static final String DEFAULT_EXEC_NAME = "GDBMIGenericTestApp.exe";
 	
 	protected static final String GDB_NOT_FOUND = "not found";
@@ -375,6 +381,11 @@ public class LaunchGDB {
 
  		// Now initialize our SyncUtility, since we have the launcher
  		SyncUtil.initialize(fLaunch.getSession());
+
+ 		String conditionEvaluation = (String)launchAttributes.get(ATTR_BREAKPOINT_CONDITION_EVALUATION);
+ 		if (conditionEvaluation != null) {
+ 			SyncUtil.setBreakpointConditionEvaluation(conditionEvaluation);
+ 		}
 	}
 
  	/**
@@ -0,0 +1,286 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IContainerDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExitedDMEvent;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.ISuspendedDMEvent;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.StateChangeReason;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.events.IMIDMEvent;
+import org.eclipse.cdt.dsf.mi.service.command.events.MIBreakpointHitEvent;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakpoint;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.dsf.service.DsfServiceEventHandler;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+
+/**
+ * Line coverage of programs built without coverage instrumentation.
+ * <p>
+ * A temporary breakpoint is inserted, in bulk, on every line of the chosen
+ * files that has code, as listed by <code>-symbol-list-lines</code>. While
+ * {@link #run(int)} lets the program go, each hit is recorded and the
+ * program resumed right from the handler of the suspended event, on the
+ * executor, with no round trip through the test. Resuming from there rather
+ * than from the raw <code>*stopped</code> output lets the run control
+ * service see the stop before the program goes on. GDB deletes a temporary
+ * breakpoint on its first hit, so every line costs at most one stop and the
+ * program runs faster as coverage saturates. The result is one bit set of hit
+ * lines per file.
+ */
+public class LineCoverage {
+
+	private static class Site {
+		final String fFile;
+		final int fLine;
+
+		Site(String file, int line) {
+			fFile = file;
+			fLine = line;
+		}
+	}
+
+	private final Map<String, BitSet> fInstrumented = new LinkedHashMap<>();
+	private final Map<String, BitSet> fHit = new LinkedHashMap<>();
+	// Breakpoints not hit yet, by number
+	private final Map<String, Site> fPending = new LinkedHashMap<>();
+	private IContainerDMContext fContainerDmc;
+	private CountDownLatch fDone;
+	private StateChangeReason fStopReason;
+	private IStatus fError;
+
+	/**
+	 * Insert a temporary breakpoint on every line of the files that has code.
+	 *
+	 * @return the number of breakpoints inserted
+	 */
+	public int instrument(final String... files) throws Throwable {
+		Query<List<Site>> query = new Query<List<Site>>() {
+			@Override
+			protected void execute(final DataRequestMonitor<List<Site>> rm) {
+				final List<Site> sites = new ArrayList<>();
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm) {
+					@Override
+					protected void handleSuccess() {
+						rm.done(sites);
+					}
+				};
+				for (final String file : files) {
+					SyncUtil.getGdbControl().queueCommand(
+							new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-symbol-list-lines",
+									new String[] { file }),
+							new ImmediateDataRequestMonitor<MIInfo>(crm) {
+								@Override
+								protected void handleSuccess() {
+									// A line has an entry for each of its blocks of code
+									BitSet lines = new BitSet();
+									for (MIValue entry : MIResultsUtil.getListElements(
+											MIResultsUtil.getValue(MIResultsUtil.getResults(getData()), "lines"))) {
+										int line = MIResultsUtil.getInt(MIResultsUtil.getTuple(entry), "line", 0);
+										if (line > 0 && !lines.get(line)) {
+											lines.set(line);
+											sites.add(new Site(file, line));
+										}
+									}
+									crm.done();
+								}
+							});
+				}
+				crm.setDoneCount(files.length);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		List<Site> sites = query.get(DefaultTimeouts.get(ETimeout.addBreakpoint), TimeUnit.MILLISECONDS);
+
+		String[] locations = new String[sites.size()];
+		for (int i = 0; i < locations.length; i++) {
+			locations[i] = sites.get(i).fFile + ":" + sites.get(i).fLine;
+		}
+		MIBreakpoint[] breakpoints = SyncUtil.insertBreakpoints(locations, true,
+				DefaultTimeouts.get(ETimeout.addBreakpoint) + locations.length);
+
+		synchronized (this) {
+			for (int i = 0; i < breakpoints.length; i++) {
+				Site site = sites.get(i);
+				fPending.put(breakpoints[i].getNumber(), site);
+				getBits(fInstrumented, site.fFile).set(site.fLine);
+				getBits(fHit, site.fFile);
+			}
+		}
+		return breakpoints.length;
+	}
+
+	/**
+	 * Resume the program and record the lines it goes through, until it
+	 * exits, every line has been hit, or it stops for another reason, in
+	 * which case it is left stopped.
+	 *
+	 * @return the reason of the last stop, which is
+	 *         {@link StateChangeReason#BREAKPOINT} when the last line was hit,
+	 *         or <code>null</code> if the program exited or every line had
+	 *         already been hit
+	 * @throws CoreException
+	 *             if the program could not be resumed
+	 */
+	public StateChangeReason run(int massagedTimeout) throws Throwable {
+		IContainerDMContext containerDmc = SyncUtil.getContainerContext();
+		synchronized (this) {
+			if (fPending.isEmpty()) {
+				return null;
+			}
+			fContainerDmc = containerDmc;
+			fDone = new CountDownLatch(1);
+			fStopReason = null;
+			fError = null;
+		}
+
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getSession().addServiceEventListener(LineCoverage.this, null);
+				resume();
+			}
+		});
+
+		try {
+			if (!fDone.await(massagedTimeout, TimeUnit.MILLISECONDS)) {
+				throw new TimeoutException("Timed out collecting the line coverage");
+			}
+		} finally {
+			submit(new Runnable() {
+				@Override
+				public void run() {
+					SyncUtil.getSession().removeServiceEventListener(LineCoverage.this);
+				}
+			});
+		}
+		synchronized (this) {
+			if (fError != null) {
+				throw new CoreException(fError);
+			}
+			return fStopReason;
+		}
+	}
+
+	/**
+	 * @return the files that were instrumented
+	 */
+	public synchronized List<String> getFiles() {
+		return new ArrayList<>(fInstrumented.keySet());
+	}
+
+	/**
+	 * @return the lines of the file that were hit, as bits
+	 */
+	public synchronized BitSet getHitLines(String file) {
+		BitSet lines = fHit.get(file);
+		return lines != null ? (BitSet) lines.clone() : new BitSet();
+	}
+
+	/**
+	 * @return the lines of the file that have code, as bits
+	 */
+	public synchronized BitSet getInstrumentedLines(String file) {
+		BitSet lines = fInstrumented.get(file);
+		return lines != null ? (BitSet) lines.clone() : new BitSet();
+	}
+
+	/**
+	 * @return the number of breakpoints that were not hit yet
+	 */
+	public synchronized int getPendingCount() {
+		return fPending.size();
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(ISuspendedDMEvent event) {
+		String number = null;
+		if (event instanceof IMIDMEvent && ((IMIDMEvent) event).getMIEvent() instanceof MIBreakpointHitEvent) {
+			number = String.valueOf(((MIBreakpointHitEvent) ((IMIDMEvent) event).getMIEvent()).getNumber());
+		}
+		synchronized (this) {
+			if (fDone == null || fDone.getCount() == 0) {
+				return;
+			}
+			Site site = number != null ? fPending.remove(number) : null;
+			if (site != null) {
+				fHit.get(site.fFile).set(site.fLine);
+				if (!fPending.isEmpty()) {
+					// The breakpoint is already gone, just carry on
+					resume();
+					return;
+				}
+			}
+			fStopReason = event.getReason();
+			fDone.countDown();
+		}
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IExitedDMEvent event) {
+		if (event.getDMContext() instanceof IContainerDMContext) {
+			synchronized (this) {
+				if (fDone != null) {
+					fDone.countDown();
+				}
+			}
+		}
+	}
+
+	private void resume() {
+		SyncUtil.getGdbControl().queueCommand(SyncUtil.getCommandFactory().createMIExecContinue(fContainerDmc),
+				new DataRequestMonitor<MIInfo>(ImmediateExecutor.getInstance(), null) {
+					@Override
+					protected void handleFailure() {
+						synchronized (LineCoverage.this) {
+							fError = getStatus();
+							fDone.countDown();
+						}
+					}
+				});
+	}
+
+	private static BitSet getBits(Map<String, BitSet> map, String file) {
+		BitSet bits = map.get(file);
+		if (bits == null) {
+			bits = new BitSet();
+			map.put(file, bits);
+		}
+		return bits;
+	}
+
+	private static void submit(Runnable runnable) throws Throwable {
+		try {
+			SyncUtil.getSession().getExecutor().submit(runnable).get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (String file : fInstrumented.keySet()) {
+			builder.append(file).append(": ").append(fHit.get(file).cardinality()).append('/')
+					.append(fInstrumented.get(file).cardinality()).append('\n');
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,75 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import org.eclipse.cdt.dsf.mi.service.command.output.MIConst;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIList;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResultRecord;
+import org.eclipse.cdt.dsf.mi.service.command.output.MITuple;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+
+/**
+ * Helpers to pick values out of the raw results of MI commands for which
+ * there is no dedicated output class.
+ */
+class MIResultsUtil {
+
+	private MIResultsUtil() {
+	}
+
+	static MIResult[] getResults(MIInfo info) {
+		MIResultRecord record = info.getMIOutput().getMIResultRecord();
+		return record != null ? record.getMIResults() : new MIResult[0];
+	}
+
+	static MIValue getValue(MIResult[] results, String variable) {
+		for (MIResult result : results) {
+			if (variable.equals(result.getVariable())) {
+				return result.getMIValue();
+			}
+		}
+		return null;
+	}
+
+	static String getString(MIResult[] results, String variable) {
+		MIValue value = getValue(results, variable);
+		return value instanceof MIConst ? ((MIConst) value).getString() : null;
+	}
+
+	static int getInt(MIResult[] results, String variable, int defaultValue) {
+		String value = getString(results, variable);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return defaultValue;
+	}
+
+	static MIResult[] getTuple(MIValue value) {
+		return value instanceof MITuple ? ((MITuple) value).getMIResults() : new MIResult[0];
+	}
+
+	/**
+	 * Return the elements of a list, whether it is a list of values
+	 * (<code>[{...},{...}]</code>) or of results
+	 * (<code>[frame={...},frame={...}]</code>).
+	 */
+	static MIValue[] getListElements(MIValue value) {
+		if (!(value instanceof MIList)) {
+			return new MIValue[0];
+		}
+		MIList list = (MIList) value;
+		MIResult[] results = list.getMIResults();
+		if (results != null && results.length > 0) {
+			MIValue[] values = new MIValue[results.length];
+			for (int i = 0; i < results.length; i++) {
+				values[i] = results[i].getMIValue();
+			}
+			return values;
+		}
+		MIValue[] values = list.getMIValues();
+		return values != null ? values : new MIValue[0];
+	}
+}
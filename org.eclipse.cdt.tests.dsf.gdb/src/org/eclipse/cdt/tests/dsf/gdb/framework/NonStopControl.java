@@ -0,0 +1,228 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.datamodel.DMContexts;
+import org.eclipse.cdt.dsf.datamodel.IDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExecutionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.StepType;
+import org.eclipse.cdt.dsf.debug.service.command.ICommand;
+import org.eclipse.cdt.dsf.mi.service.IMIRunControl;
+import org.eclipse.cdt.dsf.mi.service.MIRunMode;
+import org.eclipse.cdt.dsf.mi.service.command.events.MIStoppedEvent;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.service.DsfServiceEventHandler;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * Controls many threads at once in a non-stop session, see
+ * {@link LaunchGDB#supportsNonStop()}.
+ * <p>
+ * The step, resume and interrupt commands for all the given threads are
+ * queued in a single executor hop; in non-stop mode GDB acknowledges each one
+ * as soon as its thread runs, so the threads proceed in parallel. The stopped
+ * events are collected as they arrive, in any order, instead of blocking for
+ * one thread at a time as {@link SyncUtil#step(IExecutionDMContext, StepType)}
+ * does.
+ * <p>
+ * In all-stop mode GDB rejects a command for a thread while another one runs,
+ * so acting on threads fails at once with an {@link IllegalStateException}.
+ */
+public class NonStopControl {
+
+	private final BlockingDeque<MIStoppedEvent> fStops = new LinkedBlockingDeque<>();
+
+	public NonStopControl() throws InterruptedException, ExecutionException {
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getSession().addServiceEventListener(NonStopControl.this, null);
+			}
+		}).get();
+	}
+
+	public void dispose() throws InterruptedException, ExecutionException {
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getSession().removeServiceEventListener(NonStopControl.this);
+			}
+		}).get();
+		fStops.clear();
+	}
+
+	/**
+	 * @return whether the session runs in non-stop mode; in all-stop mode,
+	 *         acting on one thread acts on all of them
+	 */
+	public static boolean isNonStop() {
+		IMIRunControl runControl = SyncUtil.getRunControl();
+		return runControl != null && runControl.getRunMode() == MIRunMode.NON_STOP;
+	}
+
+	/**
+	 * Step each of the threads, and return once GDB has accepted every step.
+	 * The stops are then available from {@link #waitForStops(int, int)}.
+	 */
+	public void step(Collection<? extends IExecutionDMContext> threads, final StepType stepType) throws Throwable {
+		List<ICommand<MIInfo>> commands = new ArrayList<>(threads.size());
+		for (IExecutionDMContext dmc : threads) {
+			switch (stepType) {
+			case STEP_INTO:
+				commands.add(SyncUtil.getCommandFactory().createMIExecStep(dmc));
+				break;
+			case STEP_OVER:
+				commands.add(SyncUtil.getCommandFactory().createMIExecNext(dmc));
+				break;
+			case STEP_RETURN:
+				commands.add(SyncUtil.getCommandFactory()
+						.createMIExecFinish(SyncUtil.getStack().createFrameDMContext(dmc, 0)));
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported step type; " + stepType);
+			}
+		}
+		execute(commands);
+	}
+
+	public void resume(Collection<? extends IExecutionDMContext> threads) throws Throwable {
+		List<ICommand<MIInfo>> commands = new ArrayList<>(threads.size());
+		for (IExecutionDMContext dmc : threads) {
+			commands.add(SyncUtil.getCommandFactory().createMIExecContinue(dmc));
+		}
+		execute(commands);
+	}
+
+	public void interrupt(Collection<? extends IExecutionDMContext> threads) throws Throwable {
+		List<ICommand<MIInfo>> commands = new ArrayList<>(threads.size());
+		for (IExecutionDMContext dmc : threads) {
+			commands.add(SyncUtil.getCommandFactory().createMIExecInterrupt(dmc));
+		}
+		execute(commands);
+	}
+
+	/**
+	 * Step each of the threads and wait until they have all stopped again.
+	 * Stops already waiting, and those of other threads that arrive
+	 * meanwhile, are left for {@link #waitForStops(int, int)} and
+	 * {@link #pollStop(int)}.
+	 *
+	 * @return the stopped event of each thread, keyed by the context it was
+	 *         stepped with, in the order they arrived
+	 */
+	public Map<IExecutionDMContext, MIStoppedEvent> stepAndWait(Collection<? extends IExecutionDMContext> threads,
+			StepType stepType, int massagedTimeout) throws Throwable {
+		// Stops from before the step are not its own, but stay available
+		List<MIStoppedEvent> others = new ArrayList<>();
+		fStops.drainTo(others);
+		List<IExecutionDMContext> pending = new ArrayList<>(new LinkedHashSet<>(threads));
+		Map<IExecutionDMContext, MIStoppedEvent> stops = new LinkedHashMap<>();
+		long deadline = System.currentTimeMillis() + massagedTimeout;
+		try {
+			step(threads, stepType);
+			while (!pending.isEmpty()) {
+				MIStoppedEvent event = fStops.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				if (event == null) {
+					throw new TimeoutException("Got " + stops.size() + " of " + (stops.size() + pending.size())
+							+ " stopped events, still waiting for " + pending);
+				}
+				IExecutionDMContext stepped = removeStepped(pending, event.getDMContext());
+				if (stepped != null) {
+					stops.put(stepped, event);
+				} else {
+					others.add(event);
+				}
+			}
+		} finally {
+			// Put the other stops back ahead of any that came since
+			for (int i = others.size() - 1; i >= 0; i--) {
+				fStops.addFirst(others.get(i));
+			}
+		}
+		return stops;
+	}
+
+	/**
+	 * Wait for stopped events, from any thread.
+	 *
+	 * @return the events, in the order they arrived
+	 */
+	public List<MIStoppedEvent> waitForStops(int count, int massagedTimeout)
+			throws InterruptedException, TimeoutException {
+		List<MIStoppedEvent> stops = new ArrayList<>(count);
+		long deadline = System.currentTimeMillis() + massagedTimeout;
+		while (stops.size() < count) {
+			MIStoppedEvent event = fStops.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			if (event == null) {
+				throw new TimeoutException("Got " + stops.size() + " of " + count + " stopped events");
+			}
+			stops.add(event);
+		}
+		return stops;
+	}
+
+	/**
+	 * @return the next stopped event, or <code>null</code> if none arrived in
+	 *         time
+	 */
+	public MIStoppedEvent pollStop(int massagedTimeout) throws InterruptedException {
+		return fStops.poll(massagedTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(MIStoppedEvent event) {
+		fStops.add(event);
+	}
+
+	/**
+	 * @return the context, among the pending ones, that the stopped thread is
+	 *         or belongs to, now removed; <code>null</code> if none
+	 */
+	private static IExecutionDMContext removeStepped(List<IExecutionDMContext> pending, IDMContext stopped) {
+		for (int i = 0; i < pending.size(); i++) {
+			if (DMContexts.isAncestorOf(stopped, pending.get(i))) {
+				return pending.remove(i);
+			}
+		}
+		return null;
+	}
+
+	private void execute(final List<ICommand<MIInfo>> commands) throws Throwable {
+		if (commands.isEmpty()) {
+			return;
+		}
+		if (!isNonStop()) {
+			throw new IllegalStateException(
+					"Controlling threads one by one requires a non-stop session, see LaunchGDB#supportsNonStop()");
+		}
+		Query<Object> query = new Query<Object>() {
+			@Override
+			protected void execute(DataRequestMonitor<Object> rm) {
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm);
+				for (ICommand<MIInfo> command : commands) {
+					SyncUtil.getGdbControl().queueCommand(command, new ImmediateDataRequestMonitor<MIInfo>(crm));
+				}
+				crm.setDoneCount(commands.size());
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		// Each command is acknowledged as soon as its thread runs
+		query.get(DefaultTimeouts.get(ETimeout.resume) + commands.size(), TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,264 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExecutionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IResumedDMEvent;
+import org.eclipse.cdt.dsf.mi.service.IMIExecutionDMContext;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.dsf.service.DsfServiceEventHandler;
+import org.eclipse.cdt.tests.dsf.gdb.framework.StopSnapshot.Frame;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * The backtrace of a thread, read a page of frames at a time.
+ * <p>
+ * {@link SyncUtil#getStackFrame(IExecutionDMContext, int)} and
+ * {@link SyncUtil#getStackDepth(IExecutionDMContext, int)} go through the
+ * stack service, which lists the whole backtrace before it can answer; with
+ * tens of thousands of recursive frames that is far too slow. Here each page
+ * is one <code>-stack-list-frames low high</code>, the next page is requested
+ * as soon as one is, and pages are kept until the thread resumes. The depth
+ * is known exactly once the last page has been read; before that
+ * {@link #getDepth(int)} asks GDB for it with a bound.
+ */
+public class PagedStack implements Iterable<Frame> {
+
+	private final IMIExecutionDMContext fThread;
+	private final String fThreadId;
+	private final int fPageSize;
+
+	// Pages by index, read or being read; cleared on the executor on resume
+	private final ConcurrentMap<Integer, Query<Frame[]>> fPages = new ConcurrentHashMap<>();
+	private volatile int fDepth = -1;
+
+	public PagedStack(IMIExecutionDMContext thread, int pageSize) throws InterruptedException, ExecutionException {
+		assert pageSize > 0;
+		fThread = thread;
+		fThreadId = String.valueOf(thread.getThreadId());
+		fPageSize = pageSize;
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getSession().addServiceEventListener(PagedStack.this, null);
+			}
+		}).get();
+	}
+
+	public void dispose() throws InterruptedException, ExecutionException {
+		SyncUtil.getSession().getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				SyncUtil.getSession().removeServiceEventListener(PagedStack.this);
+			}
+		}).get();
+		invalidate();
+	}
+
+	public IMIExecutionDMContext getThread() {
+		return fThread;
+	}
+
+	/**
+	 * @return the frame at the level, or <code>null</code> if the stack is
+	 *         not that deep
+	 */
+	public Frame getFrame(int level) throws Throwable {
+		Frame[] page = getPage(level / fPageSize);
+		int index = level % fPageSize;
+		return index < page.length ? page[index] : null;
+	}
+
+	/**
+	 * @return the frames from <code>low</code> to <code>high</code>, both
+	 *         included, or fewer if the stack is not that deep
+	 */
+	public Frame[] getFrames(int low, int high) throws Throwable {
+		int count = Math.max(0, high - low + 1);
+		if (fDepth >= 0) {
+			count = Math.max(0, Math.min(count, fDepth - low));
+		}
+		Frame[] frames = new Frame[count];
+		for (int i = 0; i < count; i++) {
+			Frame frame = getFrame(low + i);
+			if (frame == null) {
+				Frame[] partial = new Frame[i];
+				System.arraycopy(frames, 0, partial, 0, i);
+				return partial;
+			}
+			frames[i] = frame;
+		}
+		return frames;
+	}
+
+	/**
+	 * Get the depth of the stack, without reading all of it.
+	 *
+	 * @param maxDepth
+	 *            the most frames to count, or 0 for no bound
+	 * @return the depth, exact when it has already been reached by reading
+	 *         pages, otherwise as given by <code>-stack-info-depth</code>,
+	 *         which stops counting at <code>maxDepth</code>
+	 */
+	public int getDepth(int maxDepth) throws Throwable {
+		int depth = fDepth;
+		if (depth >= 0) {
+			return maxDepth > 0 ? Math.min(depth, maxDepth) : depth;
+		}
+
+		final String[] params = maxDepth > 0 ? new String[] { Integer.toString(maxDepth) } : new String[0];
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(),
+						"-stack-info-depth", new String[] { "--thread", fThreadId }, params), rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		MIInfo info = query.get(DefaultTimeouts.get(ETimeout.getStackFrame), TimeUnit.MILLISECONDS);
+		depth = MIResultsUtil.getInt(MIResultsUtil.getResults(info), "depth", 0);
+		if (maxDepth <= 0 || depth < maxDepth) {
+			fDepth = depth;
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the frames from the innermost one, read page by page as the
+	 *         iteration goes
+	 */
+	@Override
+	public Iterator<Frame> iterator() {
+		return new Iterator<Frame>() {
+			private int fLevel;
+			private Frame fNext;
+
+			@Override
+			public boolean hasNext() {
+				if (fNext == null) {
+					try {
+						fNext = getFrame(fLevel);
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Throwable e) {
+						throw new IllegalStateException("Failed to read frame " + fLevel, e);
+					}
+				}
+				return fNext != null;
+			}
+
+			@Override
+			public Frame next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Frame frame = fNext;
+				fNext = null;
+				fLevel++;
+				return frame;
+			}
+		};
+	}
+
+	/**
+	 * Forget the pages read so far.
+	 */
+	public void invalidate() {
+		fPages.clear();
+		fDepth = -1;
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IResumedDMEvent event) {
+		// In all-stop mode the event is for the container, so any resume
+		// may move this thread
+		invalidate();
+	}
+
+	private Frame[] getPage(int index) throws Throwable {
+		int depth = fDepth;
+		if (depth >= 0 && index * fPageSize >= depth) {
+			return new Frame[0];
+		}
+		Query<Frame[]> page = requestPage(index);
+		if (depth < 0 || (index + 1) * fPageSize < depth) {
+			// Read ahead while the caller goes through this page
+			requestPage(index + 1);
+		}
+		return page.get(DefaultTimeouts.get(ETimeout.getStackFrame) + fPageSize, TimeUnit.MILLISECONDS);
+	}
+
+	private Query<Frame[]> requestPage(final int index) {
+		Query<Frame[]> page = fPages.get(index);
+		if (page != null) {
+			return page;
+		}
+		final int low = index * fPageSize;
+		final String[] params = new String[] { Integer.toString(low), Integer.toString(low + fPageSize - 1) };
+		page = new Query<Frame[]>() {
+			@Override
+			protected void execute(final DataRequestMonitor<Frame[]> rm) {
+				SyncUtil.getGdbControl().queueCommand(new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(),
+						"-stack-list-frames", new String[] { "--thread", fThreadId }, params),
+						new ImmediateDataRequestMonitor<MIInfo>(rm) {
+							@Override
+							protected void handleSuccess() {
+								rm.done(createFrames(MIResultsUtil.getListElements(
+										MIResultsUtil.getValue(MIResultsUtil.getResults(getData()), "stack"))));
+							}
+
+							@Override
+							protected void handleError() {
+								if (low == 0) {
+									super.handleError();
+									return;
+								}
+								// GDB refuses a range that starts past the outermost frame
+								rm.done(new Frame[0]);
+							}
+						});
+			}
+		};
+		Query<Frame[]> existing = fPages.putIfAbsent(index, page);
+		if (existing != null) {
+			return existing;
+		}
+		SyncUtil.getSession().getExecutor().execute(page);
+		return page;
+	}
+
+	private Frame[] createFrames(MIValue[] stack) {
+		Frame[] frames = new Frame[stack.length];
+		for (int i = 0; i < stack.length; i++) {
+			MIResult[] fields = MIResultsUtil.getTuple(stack[i]);
+			frames[i] = new Frame(MIResultsUtil.getString(fields, "addr"), MIResultsUtil.getString(fields, "func"),
+					MIResultsUtil.getString(fields, "file"), MIResultsUtil.getInt(fields, "line", 0));
+		}
+		if (stack.length < fPageSize && stack.length > 0) {
+			// This is the outermost page
+			int low = MIResultsUtil.getInt(MIResultsUtil.getTuple(stack[0]), "level", -1);
+			if (low >= 0) {
+				fDepth = low + stack.length;
+			}
+		}
+		return frames;
+	}
+
+	@Override
+	public String toString() {
+		return "Thread " + fThreadId + ", " + fPages.size() + " pages of " + fPageSize
+				+ (fDepth >= 0 ? ", depth " + fDepth : "");
+	}
+}
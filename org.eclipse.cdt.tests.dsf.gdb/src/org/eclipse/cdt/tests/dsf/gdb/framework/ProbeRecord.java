@@ -0,0 +1,48 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.Arrays;
+
+import org.eclipse.cdt.tests.dsf.gdb.framework.CollectionProbes.Probe;
+
+/**
+ * The values logged by one hit of a {@link CollectionProbes} probe.
+ */
+public class ProbeRecord {
+	private final Probe fProbe;
+	private final String[] fValues;
+	private final long fTimestamp;
+
+	ProbeRecord(Probe probe, String[] values, long timestamp) {
+		fProbe = probe;
+		fValues = values;
+		fTimestamp = timestamp;
+	}
+
+	public Probe getProbe() {
+		return fProbe;
+	}
+
+	/**
+	 * @return the formatted values, in the order of the probe's expressions
+	 */
+	public String[] getValues() {
+		return fValues.clone();
+	}
+
+	public String getValue(int index) {
+		return fValues[index];
+	}
+
+	/**
+	 * @return when the record was received, as given by
+	 *         {@link System#nanoTime()}
+	 */
+	public long getTimestamp() {
+		return fTimestamp;
+	}
+
+	@Override
+	public String toString() {
+		return fProbe.getLocation() + Arrays.toString(fValues);
+	}
+}
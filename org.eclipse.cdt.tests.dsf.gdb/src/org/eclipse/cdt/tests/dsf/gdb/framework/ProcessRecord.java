@@ -0,0 +1,247 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExecutionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.StepType;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIConsoleStreamOutput;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIOOBRecord;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * Process record and replay, for going back from a failure to its cause
+ * without restarting the program.
+ * <p>
+ * Recording is started with a bound on what it keeps: the number of
+ * instructions for <code>record full</code>, the size of the trace buffer for
+ * <code>record btrace</code>. The execution can then be replayed, an
+ * instruction at a time with {@link #gotoInstruction(long)}, or by batches of
+ * reverse steps run on the executor with {@link #reverseStep(StepType, int, int)}.
+ * {@link #getStatus()} shows how much is recorded against the bound.
+ */
+public class ProcessRecord {
+
+	public enum Method {
+		/** Records every instruction, in software; slow but works everywhere */
+		FULL("full"),
+		/** Branch trace store, in hardware */
+		BTRACE_BTS("btrace bts"),
+		/** Intel Processor Trace, in hardware */
+		BTRACE_PT("btrace pt");
+
+		private final String fName;
+
+		Method(String name) {
+			fName = name;
+		}
+	}
+
+	/**
+	 * The state of the recording, as shown by <code>info record</code>. The
+	 * counts that GDB does not show for a method are -1.
+	 */
+	public static class Status {
+		private final String fText;
+		private final long fInstructions;
+		private final long fMaxInstructions;
+		private final long fLowest;
+		private final long fHighest;
+		private final long fCurrent;
+
+		Status(String text) {
+			fText = text;
+			// "Log contains" for full, "Recorded" for btrace
+			long instructions = find(text, "Log contains (\\d+) instructions");
+			fInstructions = instructions >= 0 ? instructions : find(text, "Recorded (\\d+) instructions");
+			fMaxInstructions = find(text, "Max logged instructions is (\\d+)");
+			fLowest = find(text, "Lowest recorded instruction number is (\\d+)");
+			fHighest = find(text, "Highest recorded instruction number is (\\d+)");
+			long current = find(text, "Current instruction number is (\\d+)");
+			fCurrent = current >= 0 ? current : find(text, "At instruction (\\d+)");
+		}
+
+		public boolean isRecording() {
+			return fText.contains("Active record target");
+		}
+
+		/**
+		 * @return whether the execution is being replayed rather than
+		 *         recorded
+		 */
+		public boolean isReplaying() {
+			return fCurrent >= 0;
+		}
+
+		public long getInstructionCount() {
+			return fInstructions;
+		}
+
+		/**
+		 * @return the most instructions <code>record full</code> keeps
+		 */
+		public long getMaxInstructions() {
+			return fMaxInstructions;
+		}
+
+		public long getLowestInstruction() {
+			return fLowest;
+		}
+
+		public long getHighestInstruction() {
+			return fHighest;
+		}
+
+		/**
+		 * @return the instruction being replayed
+		 */
+		public long getCurrentInstruction() {
+			return fCurrent;
+		}
+
+		private static long find(String text, String regex) {
+			Matcher matcher = Pattern.compile(regex).matcher(text);
+			return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+		}
+
+		@Override
+		public String toString() {
+			return fText;
+		}
+	}
+
+	private Method fMethod;
+
+	/**
+	 * Start recording the current process.
+	 *
+	 * @param limit
+	 *            for {@link Method#FULL}, the most instructions to keep; for
+	 *            the btrace methods, the size of the trace buffer, in bytes; 0
+	 *            for GDB's default
+	 * @param stopAtLimit
+	 *            for {@link Method#FULL}, whether to stop the program when the
+	 *            log is full rather than drop the oldest instructions
+	 */
+	public void start(Method method, int limit, boolean stopAtLimit) throws Throwable {
+		if (method == Method.FULL) {
+			if (limit > 0) {
+				console("set record full insn-number-max " + limit);
+			}
+			console("set record full stop-at-limit " + (stopAtLimit ? "on" : "off"));
+		} else if (limit > 0) {
+			console("set record " + method.fName + " buffer-size " + limit);
+		}
+		console("record " + method.fName);
+		fMethod = method;
+	}
+
+	/**
+	 * Stop recording and discard the log; the program goes on from where it
+	 * is being replayed, if it is.
+	 */
+	public void stop() throws Throwable {
+		console("record stop");
+		fMethod = null;
+	}
+
+	public Method getMethod() {
+		return fMethod;
+	}
+
+	public Status getStatus() throws Throwable {
+		return new Status(console("info record"));
+	}
+
+	/**
+	 * Replay up to an instruction, as numbered in {@link #getStatus()}.
+	 *
+	 * @return the number of instructions moved over per second
+	 */
+	public double gotoInstruction(long instruction) throws Throwable {
+		return replay("record goto " + instruction, instruction);
+	}
+
+	/**
+	 * Go back to the first recorded instruction.
+	 *
+	 * @return the number of instructions moved over per second
+	 */
+	public double gotoBegin() throws Throwable {
+		return replay("record goto begin", getStatus().getLowestInstruction());
+	}
+
+	/**
+	 * Leave replay and go back to the live program.
+	 */
+	public void gotoEnd() throws Throwable {
+		console("record goto end");
+	}
+
+	/**
+	 * Step backwards <code>steps</code> times in the recording, without
+	 * coming back to the calling thread in between.
+	 */
+	public StepEngine.Result reverseStep(StepType stepType, int steps, int massagedTimeout) throws Throwable {
+		return reverseStep(SyncUtil.getContainerContext(), stepType, steps, massagedTimeout);
+	}
+
+	public StepEngine.Result reverseStep(IExecutionDMContext dmc, StepType stepType, int steps, int massagedTimeout)
+			throws Throwable {
+		return new StepEngine(dmc, stepType, true).step(steps, massagedTimeout);
+	}
+
+	/**
+	 * Step backwards until the condition is met, for instance to the last
+	 * change of a variable with {@link StepEngine#untilChanged(String)}.
+	 */
+	public StepEngine.Result reverseStepUntil(StepType stepType, StepEngine.StopCondition condition, int maxSteps,
+			int massagedTimeout) throws Throwable {
+		return new StepEngine(SyncUtil.getContainerContext(), stepType, true).stepUntil(condition, maxSteps,
+				massagedTimeout);
+	}
+
+	private double replay(String command, long target) throws Throwable {
+		Status status = getStatus();
+		// When not replaying yet, the live program is past the last instruction
+		long from = status.isReplaying() ? status.getCurrentInstruction() : status.getHighestInstruction();
+		long start = System.nanoTime();
+		console(command);
+		long elapsed = System.nanoTime() - start;
+		return from >= 0 && target >= 0 && elapsed > 0 ? Math.abs(from - target) * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * @return the console output of the command
+	 */
+	private static String console(final String command) throws Throwable {
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(final DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(SyncUtil.getCommandFactory()
+						.createMIInterpreterExecConsole(SyncUtil.getGdbControl().getContext(), command), rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		// Replaying to a far instruction takes as long as it takes
+		MIInfo info = query.get(DefaultTimeouts.get(ETimeout.runToLocation), TimeUnit.MILLISECONDS);
+
+		StringBuilder output = new StringBuilder();
+		for (MIOOBRecord oobr : info.getMIOutput().getMIOOBRecords()) {
+			if (oobr instanceof MIConsoleStreamOutput) {
+				output.append(((MIConsoleStreamOutput) oobr).getString());
+			}
+		}
+		return output.toString();
+	}
+
+	@Override
+	public String toString() {
+		return fMethod != null ? "record " + fMethod.fName : "not recording";
+	}
+}
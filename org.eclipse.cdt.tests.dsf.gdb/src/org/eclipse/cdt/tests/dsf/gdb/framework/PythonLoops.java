@@ -0,0 +1,332 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.StepType;
+import org.eclipse.cdt.dsf.debug.service.command.ICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIConsoleStreamOutput;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIOOBRecord;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * Runs loops inside GDB's embedded Python, so that their iterations do not
+ * each cross the executor, the MI channel and GDB.
+ * <p>
+ * A few helper functions are defined in GDB once; each loop is then a single
+ * <code>python</code> command queued on the GDB control like any other. The
+ * loop gathers its rows and writes them as one console line, which comes back
+ * as the output of that command and is returned as a {@link Result}. Each
+ * field is ended by '|' and each row by ';', so that no rows, a row without
+ * fields and a row with one empty field all read back as they were. The
+ * values are escaped with '\', so that they may hold these characters or span
+ * several lines. Stepping from Python still reports each stop to the session,
+ * but nothing waits on those events.
+ * <p>
+ * Requires a GDB built with Python.
+ */
+public class PythonLoops {
+
+	private static final String RESULT_START = "@cdt@";
+	private static final char ROW_END = ';';
+	private static final char FIELD_END = '|';
+
+	private static final String HELPERS = String.join("\n",
+			"def _cdt_escape(v):",
+			"    return str(v).replace('\\\\', '\\\\\\\\').replace('\\n', '\\\\n').replace('\\r', '\\\\r')"
+					+ ".replace(';', '\\\\;').replace('|', '\\\\|')",
+			"def _cdt_emit(rows):",
+			"    gdb.write('@cdt@' + ''.join(''.join(_cdt_escape(v) + '|' for v in r) + ';' for r in rows) + '\\n')",
+			"def _cdt_eval(e):",
+			"    try:",
+			"        return str(gdb.parse_and_eval(e))",
+			"    except gdb.error as x:",
+			"        return '<error: %s>' % x",
+			"def _cdt_step_until(cmd, cond, n, exprs):",
+			"    rows = []",
+			"    for i in range(n):",
+			"        try:",
+			"            gdb.execute(cmd, to_string=True)",
+			"        except gdb.error:",
+			"            break",
+			"        if gdb.selected_inferior().pid == 0:",
+			"            break",
+			"        rows.append([_cdt_eval(e) for e in exprs])",
+			"        if cond and bool(gdb.parse_and_eval(cond)):",
+			"            break",
+			"    _cdt_emit(rows)",
+			"def _cdt_walk(head, nxt, n, fields):",
+			"    rows = []",
+			"    node = gdb.parse_and_eval(head)",
+			"    while int(node) != 0 and len(rows) < n:",
+			"        d = node.dereference()",
+			"        rows.append([d[f] for f in fields])",
+			"        node = d[nxt]",
+			"    _cdt_emit(rows)",
+			"def _cdt_backtraces(n):",
+			"    rows = []",
+			"    thread = gdb.selected_thread()",
+			"    try:",
+			"        frame = gdb.selected_frame()",
+			"    except gdb.error:",
+			"        frame = None",
+			"    address = '0x%%0%dx' % (gdb.lookup_type('void').pointer().sizeof * 2)",
+			"    try:",
+			"        for inferior in gdb.inferiors():",
+			"            for t in inferior.threads():",
+			"                if not t.is_stopped():",
+			"                    continue",
+			"                t.switch()",
+			"                f = gdb.newest_frame()",
+			"                depth = 0",
+			"                while f is not None and (n <= 0 or depth < n):",
+			"                    sal = f.find_sal()",
+			"                    rows.append([getattr(t, 'global_num', t.num), address % f.pc(), f.name() or '',",
+			"                                 sal.symtab.filename if sal.symtab else '', sal.line])",
+			"                    depth += 1",
+			"                    try:",
+			"                        f = f.older()",
+			"                    except gdb.error:",
+			"                        break",
+			"    finally:",
+			"        if thread is not None:",
+			"            thread.switch()",
+			"        if frame is not None:",
+			"            frame.select()",
+			"    _cdt_emit(rows)");
+
+	/**
+	 * The rows gathered by a loop, each with one value per column.
+	 */
+	public static class Result {
+		private final List<String[]> fRows;
+
+		Result(List<String[]> rows) {
+			fRows = rows;
+		}
+
+		public int size() {
+			return fRows.size();
+		}
+
+		public List<String[]> getRows() {
+			return Collections.unmodifiableList(fRows);
+		}
+
+		public String getValue(int row, int column) {
+			return fRows.get(row)[column];
+		}
+
+		/**
+		 * @return the value as a number, see
+		 *         {@link Long#decode(String)}, ignoring anything after the
+		 *         first space, such as the character GDB shows after a
+		 *         <code>char</code>
+		 */
+		public long getLong(int row, int column) {
+			String value = getValue(row, column).trim();
+			int space = value.indexOf(' ');
+			return Long.decode(space >= 0 ? value.substring(0, space) : value);
+		}
+
+		/**
+		 * @return the values of a column, one per row
+		 */
+		public List<String> getColumn(int column) {
+			List<String> values = new ArrayList<>(fRows.size());
+			for (String[] row : fRows) {
+				values.add(row[column]);
+			}
+			return values;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for (String[] row : fRows) {
+				builder.append(String.join(", ", row)).append('\n');
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Define the helper functions in GDB.
+	 */
+	public PythonLoops() throws Throwable {
+		python(getDefinition(), DefaultTimeouts.get(ETimeout.addBreakpoint));
+	}
+
+	/**
+	 * Step until the condition is true in the program, or
+	 * <code>maxSteps</code> times, evaluating the expressions after each
+	 * step. The loop also ends if the program exits or a step fails.
+	 *
+	 * @param condition
+	 *            an expression in the language of the program, or
+	 *            <code>null</code> to take all the steps
+	 * @return one row per step, with the value of each expression
+	 */
+	public Result stepUntil(StepType stepType, String condition, int maxSteps, int massagedTimeout,
+			String... expressions) throws Throwable {
+		String command;
+		switch (stepType) {
+		case STEP_INTO:
+			command = "step";
+			break;
+		case STEP_OVER:
+			command = "next";
+			break;
+		case STEP_RETURN:
+			command = "finish";
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported step type; " + stepType);
+		}
+		return python("_cdt_step_until(" + toPythonString(command) + ", "
+				+ (condition != null ? toPythonString(condition) : "None") + ", " + maxSteps + ", "
+				+ toPythonList(expressions) + ")", massagedTimeout);
+	}
+
+	/**
+	 * Walk a linked list, from the pointer <code>head</code> and following the
+	 * field <code>next</code>, until a null pointer or <code>maxNodes</code>
+	 * nodes.
+	 *
+	 * @return one row per node, with the value of each field
+	 */
+	public Result walkList(String head, String next, int maxNodes, int massagedTimeout, String... fields)
+			throws Throwable {
+		return python("_cdt_walk(" + toPythonString(head) + ", " + toPythonString(next) + ", " + maxNodes + ", "
+				+ toPythonList(fields) + ")", massagedTimeout);
+	}
+
+	/**
+	 * Walk the stack of every stopped thread, from the innermost frame out, up
+	 * to <code>maxDepth</code> frames per thread, or all of them if 0. The
+	 * selected thread and frame are left as they were.
+	 *
+	 * @return one row per frame, with the global thread id, the address, the
+	 *         function, the file and the line, empty when unknown
+	 */
+	public Result backtraces(int maxDepth, int massagedTimeout) throws Throwable {
+		return python(getBacktracesStatement(maxDepth), massagedTimeout);
+	}
+
+	/**
+	 * Run a loop of your own: the Python expression must evaluate to a list
+	 * of rows, each a list of values. The helpers can be used in it, e.g.
+	 * <code>[[_cdt_eval('a[%d]' % i)] for i in range(1000)]</code>.
+	 */
+	public Result evaluate(String pythonExpression, int massagedTimeout) throws Throwable {
+		return python("_cdt_emit(" + pythonExpression + ")", massagedTimeout);
+	}
+
+	/**
+	 * @return the statement that defines the helper functions, for
+	 *         {@link #createCommand(String)}
+	 */
+	static String getDefinition() {
+		return "exec(" + toPythonString(HELPERS) + ")";
+	}
+
+	/**
+	 * @return the statement behind {@link #backtraces(int, int)}, for
+	 *         {@link #createCommand(String)}
+	 */
+	static String getBacktracesStatement(int maxDepth) {
+		return "_cdt_backtraces(" + maxDepth + ")";
+	}
+
+	/**
+	 * For callers already on the executor, which queue the command
+	 * themselves and read its output with {@link #getResult(MIInfo)}.
+	 */
+	static ICommand<MIInfo> createCommand(String statement) {
+		return SyncUtil.getCommandFactory().createMIInterpreterExecConsole(SyncUtil.getGdbControl().getContext(),
+				"python " + statement);
+	}
+
+	private static Result python(final String statement, int massagedTimeout) throws Throwable {
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(createCommand(statement), rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		return getResult(query.get(massagedTimeout, TimeUnit.MILLISECONDS));
+	}
+
+	static Result getResult(MIInfo info) {
+		// GDB may split a long line over several records
+		StringBuilder output = new StringBuilder();
+		for (MIOOBRecord oobr : info.getMIOutput().getMIOOBRecords()) {
+			if (oobr instanceof MIConsoleStreamOutput) {
+				output.append(((MIConsoleStreamOutput) oobr).getString());
+			}
+		}
+		int start = output.indexOf(RESULT_START);
+		if (start < 0) {
+			return new Result(new ArrayList<String[]>());
+		}
+		// Line breaks within values are escaped, so the first one ends the result
+		int end = output.indexOf("\n", start);
+		return new Result(parseRows(output.substring(start + RESULT_START.length(), end >= 0 ? end : output.length())));
+	}
+
+	private static List<String[]> parseRows(String text) {
+		List<String[]> rows = new ArrayList<>();
+		List<String> row = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\' && i + 1 < text.length()) {
+				char escaped = text.charAt(++i);
+				value.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+			} else if (c == FIELD_END) {
+				row.add(value.toString());
+				value.setLength(0);
+			} else if (c == ROW_END) {
+				rows.add(row.toArray(new String[row.size()]));
+				row.clear();
+			} else {
+				value.append(c);
+			}
+		}
+		// Anything after the last ';' is not a complete row
+		return rows;
+	}
+
+	private static String toPythonList(String[] values) {
+		StringBuilder list = new StringBuilder("[");
+		for (String value : values) {
+			if (list.length() > 1) {
+				list.append(", ");
+			}
+			list.append(toPythonString(value));
+		}
+		return list.append(']').toString();
+	}
+
+	private static String toPythonString(String value) {
+		StringBuilder literal = new StringBuilder("'");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\'' || c == '\\') {
+				literal.append('\\').append(c);
+			} else if (c == '\n') {
+				literal.append("\\n");
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.append('\'').toString();
+	}
+}
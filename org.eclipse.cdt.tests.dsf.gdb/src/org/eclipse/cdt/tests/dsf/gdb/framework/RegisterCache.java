@@ -0,0 +1,355 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.datamodel.DMContexts;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IContainerDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExitedDMEvent;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IResumedDMEvent;
+import org.eclipse.cdt.dsf.debug.service.IStack.IFrameDMContext;
+import org.eclipse.cdt.dsf.gdb.service.command.IGDBControl;
+import org.eclipse.cdt.dsf.mi.service.IMIExecutionDMContext;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIConsoleStreamOutput;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIConst;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIOOBRecord;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.dsf.service.DsfServiceEventHandler;
+import org.eclipse.cdt.dsf.service.DsfSession;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * The registers of the frames of a session, read all at once and kept until
+ * the program resumes.
+ * <p>
+ * The first lookup in a frame reads every register of it with a single
+ * <code>-data-list-register-values</code>; the following ones, whatever
+ * registers they select, are answered from the cache. When the program
+ * resumes, the registers of the innermost frame of each thread are kept
+ * aside, so that the registers that changed from one stop to the next can be
+ * told. The register names and their groups are read once per process.
+ * <p>
+ * Registers are selected with glob patterns, as for the pattern-matching
+ * expressions of the debugger: <code>*</code>, <code>?</code> and
+ * <code>[...]</code>, several patterns separated by commas, each with an
+ * optional leading <code>$</code>, for instance <code>"$e?x, $r*"</code>.
+ */
+public class RegisterCache {
+
+	private final DsfSession fSession;
+	private final IGDBControl fGdbControl;
+
+	// All of these are written on the executor only
+	private volatile String[] fNames;
+	private volatile Map<String, Set<String>> fGroups;
+	// Values by register name, per "thread:level"
+	private final Map<String, Map<String, String>> fValues = new ConcurrentHashMap<>();
+	// Innermost frame values at the previous stop, per thread
+	private final Map<String, Map<String, String>> fPrevious = new ConcurrentHashMap<>();
+	private int fGeneration;
+
+	/**
+	 * Must be created on the session executor.
+	 */
+	RegisterCache(DsfSession session, IGDBControl gdbControl) {
+		assert session.getExecutor().isInExecutorThread();
+		fSession = session;
+		fGdbControl = gdbControl;
+		fSession.addServiceEventListener(this, null);
+	}
+
+	/**
+	 * @param pattern
+	 *            the registers to return, or <code>null</code> for all of them
+	 * @return the values of the registers of the frame, in register number
+	 *         order
+	 */
+	public Map<String, String> getRegisters(IFrameDMContext frameDmc, String pattern) throws Throwable {
+		Map<String, String> values = getAll(frameDmc);
+		if (pattern == null) {
+			return new LinkedHashMap<>(values);
+		}
+		Pattern regex = toRegex(pattern);
+		Map<String, String> selected = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (regex.matcher(entry.getKey()).matches()) {
+				selected.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * @param group
+	 *            a register group, as listed by
+	 *            <code>maint print reggroups</code>, e.g. "general", "float"
+	 *            or "vector"
+	 */
+	public Map<String, String> getRegisterGroup(IFrameDMContext frameDmc, String group) throws Throwable {
+		Map<String, String> values = getAll(frameDmc);
+		Map<String, Set<String>> groups = getGroups();
+		Map<String, String> selected = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			Set<String> registerGroups = groups.get(entry.getKey());
+			if (registerGroups != null && registerGroups.contains(group)) {
+				selected.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * @return the registers of the innermost frame of the thread of
+	 *         <code>frameDmc</code> whose value differs from the last stop
+	 *         they were read at, with their new value; all of them if they
+	 *         were never read before
+	 */
+	public Map<String, String> getChangedRegisters(IFrameDMContext frameDmc) throws Throwable {
+		IFrameDMContext topFrameDmc = SyncUtil.getStack().createFrameDMContext(
+				DMContexts.getAncestorOfType(frameDmc, IMIExecutionDMContext.class), 0);
+		Map<String, String> values = getAll(topFrameDmc);
+		Map<String, String> previous = fPrevious.get(getThreadId(frameDmc));
+		Map<String, String> changed = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (previous == null || !entry.getValue().equals(previous.get(entry.getKey()))) {
+				changed.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return the register names, in register number order
+	 */
+	public List<String> getNames() throws Throwable {
+		fetch(null);
+		List<String> names = new ArrayList<>();
+		for (String name : fNames) {
+			if (!name.isEmpty()) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IResumedDMEvent event) {
+		fGeneration++;
+		for (Map.Entry<String, Map<String, String>> entry : fValues.entrySet()) {
+			String key = entry.getKey();
+			if (key.endsWith(":0")) {
+				fPrevious.put(key.substring(0, key.length() - 2), entry.getValue());
+			}
+		}
+		fValues.clear();
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IExitedDMEvent event) {
+		if (event.getDMContext() instanceof IContainerDMContext) {
+			fGeneration++;
+			fValues.clear();
+			fPrevious.clear();
+			fNames = null;
+			fGroups = null;
+		}
+	}
+
+	public void dispose() throws Throwable {
+		fSession.getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				fSession.removeServiceEventListener(RegisterCache.this);
+			}
+		}).get();
+	}
+
+	private Map<String, String> getAll(IFrameDMContext frameDmc) throws Throwable {
+		Map<String, String> values = fValues.get(getKey(frameDmc));
+		return values != null ? values : fetch(frameDmc);
+	}
+
+	/**
+	 * Read the register names if needed, then the values of the frame, if
+	 * there is one.
+	 */
+	private Map<String, String> fetch(final IFrameDMContext frameDmc) throws Throwable {
+		Query<Map<String, String>> query = new Query<Map<String, String>>() {
+			@Override
+			protected void execute(final DataRequestMonitor<Map<String, String>> rm) {
+				if (fNames != null) {
+					fetchValues(frameDmc, rm);
+					return;
+				}
+				// The values are only read once the names are in, so that a
+				// failure here fails the query rather than caching no values
+				fGdbControl.queueCommand(new MICommand<MIInfo>(fGdbControl.getContext(), "-data-list-register-names"),
+						new ImmediateDataRequestMonitor<MIInfo>(rm) {
+							@Override
+							protected void handleSuccess() {
+								MIValue[] names = MIResultsUtil.getListElements(MIResultsUtil
+										.getValue(MIResultsUtil.getResults(getData()), "register-names"));
+								String[] registerNames = new String[names.length];
+								for (int i = 0; i < names.length; i++) {
+									registerNames[i] = names[i] instanceof MIConst
+											? ((MIConst) names[i]).getString() : "";
+								}
+								fNames = registerNames;
+								fetchValues(frameDmc, rm);
+							}
+						});
+			}
+		};
+		fSession.getExecutor().execute(query);
+		return query.get(DefaultTimeouts.get(ETimeout.getRegisters), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Must be called on the executor, once the names are known.
+	 */
+	private void fetchValues(IFrameDMContext frameDmc, final DataRequestMonitor<Map<String, String>> rm) {
+		if (frameDmc == null) {
+			rm.done(Collections.<String, String> emptyMap());
+			return;
+		}
+		final String key = getKey(frameDmc);
+		Map<String, String> cached = fValues.get(key);
+		if (cached != null) {
+			rm.done(cached);
+			return;
+		}
+		final int generation = fGeneration;
+		fGdbControl.queueCommand(new MICommand<MIInfo>(frameDmc, "-data-list-register-values",
+				new String[] { "--skip-unavailable" }, new String[] { "x" }),
+				new ImmediateDataRequestMonitor<MIInfo>(rm) {
+					@Override
+					protected void handleSuccess() {
+						Map<String, String> values = new LinkedHashMap<>();
+						String[] names = fNames;
+						for (MIValue element : MIResultsUtil.getListElements(MIResultsUtil
+								.getValue(MIResultsUtil.getResults(getData()), "register-values"))) {
+							MIResult[] fields = MIResultsUtil.getTuple(element);
+							int number = MIResultsUtil.getInt(fields, "number", -1);
+							if (names != null && number >= 0 && number < names.length
+									&& !names[number].isEmpty()) {
+								values.put(names[number], MIResultsUtil.getString(fields, "value"));
+							}
+						}
+						values = Collections.unmodifiableMap(values);
+						if (generation == fGeneration) {
+							// Not resumed meanwhile
+							fValues.put(key, values);
+						}
+						rm.done(values);
+					}
+				});
+	}
+
+	private Map<String, Set<String>> getGroups() throws Throwable {
+		Map<String, Set<String>> groups = fGroups;
+		if (groups != null) {
+			return groups;
+		}
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				fGdbControl.queueCommand(fGdbControl.getCommandFactory()
+						.createMIInterpreterExecConsole(fGdbControl.getContext(), "maint print register-groups"), rm);
+			}
+		};
+		fSession.getExecutor().execute(query);
+		MIInfo info = query.get(DefaultTimeouts.get(ETimeout.getRegisters), TimeUnit.MILLISECONDS);
+
+		StringBuilder output = new StringBuilder();
+		for (MIOOBRecord oobr : info.getMIOutput().getMIOOBRecords()) {
+			if (oobr instanceof MIConsoleStreamOutput) {
+				output.append(((MIConsoleStreamOutput) oobr).getString());
+			}
+		}
+		groups = new HashMap<>();
+		for (String line : output.toString().split("\n")) {
+			// " Name  Nr  Rel Offset Size  Type  Groups", the groups last and
+			// separated by commas; unnamed registers start with "''"
+			String[] columns = line.trim().split("\\s+");
+			if (columns.length < 2 || "Name".equals(columns[0]) || columns[0].startsWith("'")) {
+				continue;
+			}
+			Set<String> registerGroups = new HashSet<>();
+			for (String group : columns[columns.length - 1].split(",")) {
+				registerGroups.add(group);
+			}
+			groups.put(columns[0], registerGroups);
+		}
+		fGroups = groups;
+		return groups;
+	}
+
+	private static String getKey(IFrameDMContext frameDmc) {
+		return getThreadId(frameDmc) + ":" + frameDmc.getLevel();
+	}
+
+	private static String getThreadId(IFrameDMContext frameDmc) {
+		IMIExecutionDMContext threadDmc = DMContexts.getAncestorOfType(frameDmc, IMIExecutionDMContext.class);
+		return threadDmc != null ? String.valueOf(threadDmc.getThreadId()) : "";
+	}
+
+	/**
+	 * Turn a list of glob patterns into a regular expression over register
+	 * names.
+	 */
+	static Pattern toRegex(String patterns) {
+		StringBuilder regex = new StringBuilder();
+		for (String pattern : patterns.split(",")) {
+			pattern = pattern.trim();
+			if (pattern.startsWith("$")) {
+				pattern = pattern.substring(1);
+			}
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if (c == '*') {
+					regex.append(".*");
+				} else if (c == '?') {
+					regex.append('.');
+				} else if (c == '[') {
+					int end = pattern.indexOf(']', i);
+					if (end < 0) {
+						regex.append("\\[");
+					} else {
+						regex.append(pattern, i, end + 1);
+						i = end;
+					}
+				} else {
+					regex.append(Pattern.quote(String.valueOf(c)));
+				}
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	@Override
+	public String toString() {
+		return fValues.keySet().toString();
+	}
+}
@@ -0,0 +1,240 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IContainerDMContext;
+import org.eclipse.cdt.dsf.mi.service.command.events.MIStoppedEvent;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.tests.dsf.gdb.framework.StopSnapshot.Frame;
+import org.eclipse.cdt.tests.dsf.gdb.framework.StopSnapshot.ThreadSnapshot;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * A sampling profiler for programs built without profiling support.
+ * <p>
+ * At each sample the program is interrupted, the backtraces of all its
+ * threads are taken with a single {@link StopSnapshot}, and the program is
+ * resumed. The stacks are counted in folded form, one line per distinct
+ * stack from the outermost frame in, which is what flame graph tools read.
+ * <p>
+ * The pause budget bounds the share of time the program spends stopped: when
+ * samples take longer than expected, the interval between them is stretched
+ * rather than the program slowed further.
+ */
+public class SamplingProfiler {
+
+	private final int fInterval;
+	private int fMaxDepth = 256;
+	private double fPauseBudget = 0.1;
+	private Predicate<ThreadSnapshot> fThreadFilter;
+
+	// Sorted so that the output is stable
+	private final Map<String, Integer> fStacks = new TreeMap<>();
+	private final Map<String, Integer> fFunctions = new TreeMap<>();
+	private int fStackCount;
+	private long fPauseNanos;
+	private long fElapsedNanos;
+
+	/**
+	 * @param interval
+	 *            the time between samples, in milliseconds
+	 */
+	public SamplingProfiler(int interval) {
+		assert interval > 0;
+		fInterval = interval;
+	}
+
+	/**
+	 * @param maxDepth
+	 *            the most frames kept per stack, from the innermost one
+	 */
+	public void setMaxDepth(int maxDepth) {
+		fMaxDepth = maxDepth;
+	}
+
+	/**
+	 * @param pauseBudget
+	 *            the largest share of time the program may spend stopped,
+	 *            between 0 and 1
+	 */
+	public void setPauseBudget(double pauseBudget) {
+		assert pauseBudget > 0 && pauseBudget <= 1;
+		fPauseBudget = pauseBudget;
+	}
+
+	/**
+	 * @param threadFilter
+	 *            which threads to count, or <code>null</code> for all of them
+	 */
+	public void setThreadFilter(Predicate<ThreadSnapshot> threadFilter) {
+		fThreadFilter = threadFilter;
+	}
+
+	/**
+	 * Sample the running program for a while; it is left running. Samples
+	 * add up over calls.
+	 *
+	 * @param duration
+	 *            in milliseconds
+	 * @return the number of samples taken
+	 */
+	public synchronized int run(long duration) throws Throwable {
+		IContainerDMContext containerDmc = SyncUtil.getContainerContext();
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		int samples = 0;
+		long delay = fInterval;
+		while (true) {
+			Thread.sleep(delay);
+			if (System.nanoTime() >= end) {
+				break;
+			}
+
+			long pauseStart = System.nanoTime();
+			interrupt(containerDmc);
+			StopSnapshot snapshot = StopSnapshot.capture(fMaxDepth, false);
+			resume(containerDmc);
+			long pause = System.nanoTime() - pauseStart;
+
+			add(snapshot);
+			fPauseNanos += pause;
+			samples++;
+			// Stay within the budget: pause / (pause + delay) <= budget
+			long minDelay = (long) (TimeUnit.NANOSECONDS.toMillis(pause) * (1 - fPauseBudget) / fPauseBudget);
+			delay = Math.max(fInterval, minDelay);
+		}
+		fElapsedNanos += System.nanoTime() - start;
+		return samples;
+	}
+
+	/**
+	 * @return the number of thread stacks counted, over all samples
+	 */
+	public synchronized int getStackCount() {
+		return fStackCount;
+	}
+
+	/**
+	 * @return the share of time the program was stopped for sampling
+	 */
+	public synchronized double getPauseFraction() {
+		return fElapsedNanos > 0 ? (double) fPauseNanos / fElapsedNanos : 0;
+	}
+
+	/**
+	 * @return the number of times each distinct stack was seen, keyed by its
+	 *         frames joined with ';', outermost first
+	 */
+	public synchronized Map<String, Integer> getStacks() {
+		return new TreeMap<>(fStacks);
+	}
+
+	/**
+	 * @return for each function, the number of stacks it was in
+	 */
+	public synchronized Map<String, Integer> getFunctionCounts() {
+		return new TreeMap<>(fFunctions);
+	}
+
+	/**
+	 * Write the stacks in folded form, a "stack count" line each, as read by
+	 * flamegraph.pl and compatible tools.
+	 */
+	public synchronized void writeFolded(Appendable output) throws IOException {
+		for (Map.Entry<String, Integer> entry : fStacks.entrySet()) {
+			output.append(entry.getKey()).append(' ').append(entry.getValue().toString()).append('\n');
+		}
+	}
+
+	public synchronized void clear() {
+		fStacks.clear();
+		fFunctions.clear();
+		fStackCount = 0;
+		fPauseNanos = 0;
+		fElapsedNanos = 0;
+	}
+
+	private void add(StopSnapshot snapshot) {
+		for (ThreadSnapshot thread : snapshot.getThreads()) {
+			if (thread.getDepth() == 0 || (fThreadFilter != null && !fThreadFilter.test(thread))) {
+				continue;
+			}
+			StringBuilder stack = new StringBuilder();
+			Set<String> functions = new HashSet<>();
+			for (int level = thread.getDepth() - 1; level >= 0; level--) {
+				String function = getName(thread.getFrame(level));
+				if (stack.length() > 0) {
+					stack.append(';');
+				}
+				stack.append(function);
+				functions.add(function);
+			}
+			increment(fStacks, stack.toString());
+			for (String function : functions) {
+				// Recursion counts once per stack
+				increment(fFunctions, function);
+			}
+			fStackCount++;
+		}
+	}
+
+	private static String getName(Frame frame) {
+		String function = frame.getFunction();
+		if (function == null || function.isEmpty() || "??".equals(function)) {
+			return frame.getAddress();
+		}
+		// ';' separates frames and ' ' the count in the folded format
+		return function.replace(';', ':').replace(' ', '_');
+	}
+
+	private static void increment(Map<String, Integer> counts, String key) {
+		Integer count = counts.get(key);
+		counts.put(key, count == null ? 1 : count + 1);
+	}
+
+	private static void interrupt(final IContainerDMContext containerDmc) throws Throwable {
+		ServiceEventWaitor<MIStoppedEvent> eventWaitor = new ServiceEventWaitor<MIStoppedEvent>(SyncUtil.getSession(),
+				MIStoppedEvent.class);
+		execute(new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(SyncUtil.getCommandFactory().createMIExecInterrupt(containerDmc),
+						rm);
+			}
+		});
+		eventWaitor.waitForEvent(DefaultTimeouts.get(ETimeout.waitForStop));
+	}
+
+	/**
+	 * Resume without waiting for the running event; the next interrupt is
+	 * queued after this command anyway.
+	 */
+	private static void resume(final IContainerDMContext containerDmc) throws Throwable {
+		execute(new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(SyncUtil.getCommandFactory().createMIExecContinue(containerDmc),
+						rm);
+			}
+		});
+	}
+
+	private static void execute(Query<MIInfo> query) throws Throwable {
+		SyncUtil.getSession().getExecutor().execute(query);
+		query.get(DefaultTimeouts.get(ETimeout.resume), TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return fStackCount + " stacks, " + fStacks.size() + " distinct stacks";
+	}
+}
@@ -0,0 +1,207 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.datamodel.IDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IContainerDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExecutionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExitedDMEvent;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IStartedDMEvent;
+import org.eclipse.cdt.dsf.gdb.service.IGDBProcesses;
+import org.eclipse.cdt.dsf.gdb.service.command.IGDBControl;
+import org.eclipse.cdt.dsf.mi.service.IMIExecutionDMContext;
+import org.eclipse.cdt.dsf.service.DsfServiceEventHandler;
+import org.eclipse.cdt.dsf.service.DsfSession;
+import org.eclipse.cdt.tests.dsf.gdb.launching.TestsPlugin;
+
+/**
+ * The container and thread contexts of a session, so that looking them up
+ * does not cost a query each time.
+ * <p>
+ * The container context is fetched once and then handed out as is. The
+ * threads are fetched from the processes service on first use, and kept in
+ * the order it gave them until a thread starts or exits, as GDB's
+ * <code>=thread-created</code> and <code>=thread-exited</code> notifications
+ * tell; the next lookup then fetches them again. Everything is dropped when
+ * the process exits. Lookups only go to the executor when the cache is
+ * empty.
+ */
+public class SessionContextCache {
+
+	private final DsfSession fSession;
+	private final IGDBControl fGdbControl;
+	private final IGDBProcesses fProcesses;
+
+	private volatile IContainerDMContext fContainerDmc;
+	// Written on the executor only, the array in the order of the service
+	private volatile IMIExecutionDMContext[] fThreadList;
+	private final Map<String, IMIExecutionDMContext> fThreads = new ConcurrentHashMap<>();
+	private volatile boolean fThreadsFilled;
+
+	/**
+	 * Must be created on the session executor.
+	 */
+	SessionContextCache(DsfSession session, IGDBControl gdbControl, IGDBProcesses processes) {
+		assert session.getExecutor().isInExecutorThread();
+		fSession = session;
+		fGdbControl = gdbControl;
+		fProcesses = processes;
+		fSession.addServiceEventListener(this, null);
+	}
+
+	/**
+	 * @return the context of the only process being debugged
+	 */
+	public IContainerDMContext getContainerContext()
+			throws InterruptedException, ExecutionException, TimeoutException {
+		IContainerDMContext containerDmc = fContainerDmc;
+		if (containerDmc != null) {
+			return containerDmc;
+		}
+
+		Query<IContainerDMContext> query = new Query<IContainerDMContext>() {
+			@Override
+			protected void execute(final DataRequestMonitor<IContainerDMContext> rm) {
+				if (fContainerDmc != null) {
+					rm.done(fContainerDmc);
+					return;
+				}
+				fProcesses.getProcessesBeingDebugged(fGdbControl.getContext(),
+						new ImmediateDataRequestMonitor<IDMContext[]>(rm) {
+							@Override
+							protected void handleSuccess() {
+								IDMContext[] contexts = getData();
+								assertNotNull("invalid return value from service", contexts);
+								assertEquals("unexpected number of processes", 1, contexts.length);
+								IDMContext context = contexts[0];
+								assertNotNull("unexpected process context type ", context);
+								fContainerDmc = (IContainerDMContext) context;
+								rm.done(fContainerDmc);
+							}
+						});
+			}
+		};
+		fSession.getExecutor().execute(query);
+		return query.get(TestsPlugin.massageTimeout(2000), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the threads of the process, in the order of the processes
+	 *         service
+	 */
+	public IMIExecutionDMContext[] getExecutionContexts()
+			throws InterruptedException, ExecutionException, TimeoutException {
+		IMIExecutionDMContext[] threads = fThreadList;
+		if (!fThreadsFilled || threads == null) {
+			threads = fillThreads();
+		}
+		return threads.clone();
+	}
+
+	/**
+	 * @return the context of a thread, or <code>null</code> if there is no
+	 *         such thread
+	 */
+	public IMIExecutionDMContext getExecutionContext(int threadId)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!fThreadsFilled) {
+			fillThreads();
+		}
+		return fThreads.get(Integer.toString(threadId));
+	}
+
+	/**
+	 * Forget everything; the next lookups fetch it all again.
+	 */
+	public void invalidate() throws InterruptedException, ExecutionException {
+		fSession.getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				clear();
+			}
+		}).get();
+	}
+
+	public void dispose() throws InterruptedException, ExecutionException {
+		fSession.getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				fSession.removeServiceEventListener(SessionContextCache.this);
+				clear();
+			}
+		}).get();
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IStartedDMEvent event) {
+		if (event.getDMContext() instanceof IMIExecutionDMContext) {
+			clearThreads();
+		}
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IExitedDMEvent event) {
+		IExecutionDMContext dmc = event.getDMContext();
+		if (dmc instanceof IMIExecutionDMContext) {
+			clearThreads();
+		} else if (dmc instanceof IContainerDMContext) {
+			clear();
+		}
+	}
+
+	private IMIExecutionDMContext[] fillThreads() throws InterruptedException, ExecutionException, TimeoutException {
+		final IContainerDMContext containerDmc = getContainerContext();
+		Query<IMIExecutionDMContext[]> query = new Query<IMIExecutionDMContext[]>() {
+			@Override
+			protected void execute(final DataRequestMonitor<IMIExecutionDMContext[]> rm) {
+				if (fThreadsFilled) {
+					rm.done(fThreadList);
+					return;
+				}
+				fProcesses.getProcessesBeingDebugged(containerDmc,
+						new ImmediateDataRequestMonitor<IDMContext[]>(rm) {
+							@Override
+							protected void handleSuccess() {
+								IDMContext[] threads = getData();
+								assertNotNull("invalid return value from service", threads);
+								fThreadList = (IMIExecutionDMContext[]) threads;
+								for (IMIExecutionDMContext threadDmc : fThreadList) {
+									fThreads.put(String.valueOf(threadDmc.getThreadId()), threadDmc);
+								}
+								// Until a thread starts or exits
+								fThreadsFilled = true;
+								rm.done(fThreadList);
+							}
+						});
+			}
+		};
+		fSession.getExecutor().execute(query);
+		return query.get(TestsPlugin.massageTimeout(2000), TimeUnit.MILLISECONDS);
+	}
+
+	private void clearThreads() {
+		fThreadsFilled = false;
+		fThreadList = null;
+		fThreads.clear();
+	}
+
+	private void clear() {
+		fContainerDmc = null;
+		clearThreads();
+	}
+
+	@Override
+	public String toString() {
+		return fContainerDmc + " " + fThreads.keySet();
+	}
+}
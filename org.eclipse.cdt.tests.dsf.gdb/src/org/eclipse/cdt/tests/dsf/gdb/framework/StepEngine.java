@@ -0,0 +1,391 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.concurrent.RequestMonitor;
+import org.eclipse.cdt.dsf.datamodel.DMContexts;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IContainerDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExecutionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.IExitedDMEvent;
+import org.eclipse.cdt.dsf.debug.service.IRunControl.StepType;
+import org.eclipse.cdt.dsf.debug.service.IStack.IFrameDMContext;
+import org.eclipse.cdt.dsf.debug.service.command.ICommand;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.events.MIFunctionFinishedEvent;
+import org.eclipse.cdt.dsf.mi.service.command.events.MILocationReachedEvent;
+import org.eclipse.cdt.dsf.mi.service.command.events.MISteppingRangeEvent;
+import org.eclipse.cdt.dsf.mi.service.command.events.MIStoppedEvent;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIFrame;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.service.DsfServiceEventHandler;
+import org.eclipse.cdt.tests.dsf.gdb.launching.TestsPlugin;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
+/**
+ * Steps a thread many times without coming back to the calling thread in
+ * between.
+ * <p>
+ * {@link SyncUtil#step(int, StepType)} hands over to the executor and blocks
+ * on a new event waitor for every step. Here the whole loop runs on the
+ * executor: each stopped event is checked against the end condition and, if
+ * it does not match, the next step command is queued right away. The loop
+ * ends when the condition matches, after the given number of steps, or when
+ * the thread stops for any other reason than the end of a step, such as a
+ * breakpoint or a signal.
+ */
+public class StepEngine {
+
+	/**
+	 * A condition checked on the executor after each step.
+	 */
+	public interface StopCondition {
+		/**
+		 * Called at the start of each run, before the first step, to reset
+		 * any state kept from a previous run and read what the condition
+		 * compares against. Does nothing by default.
+		 *
+		 * @param dmc
+		 *            the context being stepped
+		 */
+		default void init(IExecutionDMContext dmc, RequestMonitor rm) {
+			rm.done();
+		}
+
+		/**
+		 * Complete the request monitor with whether the loop should end at
+		 * this stop. Commands may be queued to decide, using the context of
+		 * the event.
+		 */
+		void evaluate(MIStoppedEvent event, DataRequestMonitor<Boolean> rm);
+	}
+
+	/**
+	 * The outcome of a run.
+	 */
+	public static class Result {
+		private final int fSteps;
+		private final long fElapsedNanos;
+		private final MIStoppedEvent fLastEvent;
+		private final boolean fConditionMet;
+
+		Result(int steps, long elapsedNanos, MIStoppedEvent lastEvent, boolean conditionMet) {
+			fSteps = steps;
+			fElapsedNanos = elapsedNanos;
+			fLastEvent = lastEvent;
+			fConditionMet = conditionMet;
+		}
+
+		public int getSteps() {
+			return fSteps;
+		}
+
+		public long getElapsedNanos() {
+			return fElapsedNanos;
+		}
+
+		public double getStepsPerSecond() {
+			return fElapsedNanos > 0 ? fSteps * 1e9 / fElapsedNanos : 0;
+		}
+
+		/**
+		 * @return the event of the stop the loop ended at
+		 */
+		public MIStoppedEvent getLastEvent() {
+			return fLastEvent;
+		}
+
+		/**
+		 * @return whether the loop ended because the condition matched, rather
+		 *         than because it ran out of steps or was interrupted by
+		 *         another kind of stop
+		 */
+		public boolean isConditionMet() {
+			return fConditionMet;
+		}
+
+		@Override
+		public String toString() {
+			return fSteps + " steps in " + fElapsedNanos / 1000000 + " ms ("
+					+ Math.round(getStepsPerSecond()) + "/s)" + (fConditionMet ? ", condition met" : "");
+		}
+	}
+
+	/**
+	 * @return a condition met once the thread is in the function
+	 */
+	public static StopCondition untilFunction(final String function) {
+		return new StopCondition() {
+			@Override
+			public void evaluate(MIStoppedEvent event, DataRequestMonitor<Boolean> rm) {
+				MIFrame frame = event.getFrame();
+				rm.done(frame != null && function.equals(frame.getFunction()));
+			}
+		};
+	}
+
+	/**
+	 * @return a condition met once the thread is at the line of a file whose
+	 *         name ends with <code>file</code>
+	 */
+	public static StopCondition untilLine(final String file, final int line) {
+		return new StopCondition() {
+			@Override
+			public void evaluate(MIStoppedEvent event, DataRequestMonitor<Boolean> rm) {
+				MIFrame frame = event.getFrame();
+				rm.done(frame != null && frame.getLine() == line && frame.getFile() != null
+						&& frame.getFile().endsWith(file));
+			}
+		};
+	}
+
+	/**
+	 * @return a condition met once the value of the expression, evaluated in
+	 *         the top frame, differs from its value before the first step; an
+	 *         expression that cannot be evaluated counts as a value of its own
+	 */
+	public static StopCondition untilChanged(final String expression) {
+		return new StopCondition() {
+			// Only accessed on the executor
+			private String fInitial;
+
+			@Override
+			public void init(IExecutionDMContext dmc, final RequestMonitor rm) {
+				fInitial = null;
+				evaluateExpression(dmc, new DataRequestMonitor<String>(ImmediateExecutor.getInstance(), rm) {
+					@Override
+					protected void handleSuccess() {
+						fInitial = getData();
+						rm.done();
+					}
+				});
+			}
+
+			@Override
+			public void evaluate(MIStoppedEvent event, final DataRequestMonitor<Boolean> rm) {
+				evaluateExpression(event.getDMContext(),
+						new DataRequestMonitor<String>(ImmediateExecutor.getInstance(), rm) {
+							@Override
+							protected void handleSuccess() {
+								String value = getData();
+								rm.done(value == null ? fInitial != null : !value.equals(fInitial));
+							}
+						});
+			}
+
+			/**
+			 * Complete with the value, or <code>null</code> if the expression
+			 * cannot be evaluated.
+			 */
+			private void evaluateExpression(IExecutionDMContext dmc, final DataRequestMonitor<String> rm) {
+				SyncUtil.getGdbControl().queueCommand(
+						new MICommand<MIInfo>(SyncUtil.getStack().createFrameDMContext(dmc, 0),
+								"-data-evaluate-expression", new String[] { expression }),
+						new DataRequestMonitor<MIInfo>(ImmediateExecutor.getInstance(), rm) {
+							@Override
+							protected void handleCompleted() {
+								rm.done(isSuccess()
+										? MIResultsUtil.getString(MIResultsUtil.getResults(getData()), "value") : null);
+							}
+						});
+			}
+		};
+	}
+
+	private final IExecutionDMContext fDmc;
+	private final StepType fStepType;
+	private final boolean fReverse;
+
+	// Only accessed on the executor
+	private DataRequestMonitor<Result> fRm;
+	private StopCondition fCondition;
+	private int fMaxSteps;
+	private int fSteps;
+	private long fStart;
+
+	public StepEngine(IExecutionDMContext dmc, StepType stepType, boolean reverse) {
+		fDmc = dmc;
+		fStepType = stepType;
+		fReverse = reverse;
+	}
+
+	public StepEngine(StepType stepType) throws Throwable {
+		this(SyncUtil.getContainerContext(), stepType, false);
+	}
+
+	/**
+	 * Step the given number of times.
+	 */
+	public Result step(int steps, int massagedTimeout) throws Throwable {
+		return run(steps, null, massagedTimeout);
+	}
+
+	/**
+	 * Step until the condition is met, at most <code>maxSteps</code> times.
+	 * The condition is initialized before the first step and first checked
+	 * after it.
+	 */
+	public Result stepUntil(StopCondition condition, int maxSteps, int massagedTimeout) throws Throwable {
+		return run(maxSteps, condition, massagedTimeout);
+	}
+
+	private Result run(final int maxSteps, final StopCondition condition, int massagedTimeout) throws Throwable {
+		Query<Result> query = new Query<Result>() {
+			@Override
+			protected void execute(final DataRequestMonitor<Result> rm) {
+				if (maxSteps <= 0) {
+					rm.done(new Result(0, 0, null, false));
+					return;
+				}
+				if (condition == null) {
+					start(rm, null, maxSteps);
+					return;
+				}
+				condition.init(fDmc, new RequestMonitor(ImmediateExecutor.getInstance(), rm) {
+					@Override
+					protected void handleSuccess() {
+						start(rm, condition, maxSteps);
+					}
+				});
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		try {
+			return query.get(massagedTimeout, TimeUnit.MILLISECONDS);
+		} finally {
+			// Stops the loop if it timed out
+			SyncUtil.getSession().getExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					finish(null);
+				}
+			}).get();
+		}
+	}
+
+	private void start(DataRequestMonitor<Result> rm, StopCondition condition, int maxSteps) {
+		fRm = rm;
+		fCondition = condition;
+		fMaxSteps = maxSteps;
+		fSteps = 0;
+		SyncUtil.getSession().addServiceEventListener(this, null);
+		fStart = System.nanoTime();
+		queueStep();
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(final MIStoppedEvent event) {
+		// In non-stop mode other threads stop on their own
+		if (fRm == null || !(DMContexts.isAncestorOf(event.getDMContext(), fDmc)
+				|| DMContexts.isAncestorOf(fDmc, event.getDMContext()))) {
+			return;
+		}
+		fSteps++;
+		if (!(event instanceof MISteppingRangeEvent || event instanceof MIFunctionFinishedEvent
+				|| event instanceof MILocationReachedEvent)) {
+			// A breakpoint, a signal, ...
+			finish(new Result(fSteps, System.nanoTime() - fStart, event, false));
+			return;
+		}
+		if (fCondition == null) {
+			next(event);
+			return;
+		}
+		fCondition.evaluate(event, new DataRequestMonitor<Boolean>(ImmediateExecutor.getInstance(), null) {
+			@Override
+			protected void handleCompleted() {
+				if (fRm == null) {
+					return;
+				}
+				if (!isSuccess()) {
+					fRm.done(getStatus());
+					finish(null);
+				} else if (Boolean.TRUE.equals(getData())) {
+					finish(new Result(fSteps, System.nanoTime() - fStart, event, true));
+				} else {
+					next(event);
+				}
+			}
+		});
+	}
+
+	@DsfServiceEventHandler
+	public void eventDispatched(IExitedDMEvent event) {
+		if (fRm != null && event.getDMContext() instanceof IContainerDMContext) {
+			fRm.done(new Status(IStatus.ERROR, TestsPlugin.PLUGIN_ID,
+					"The process exited after " + fSteps + " steps"));
+			finish(null);
+		}
+	}
+
+	private void next(MIStoppedEvent event) {
+		if (fSteps >= fMaxSteps) {
+			finish(new Result(fSteps, System.nanoTime() - fStart, event, false));
+			return;
+		}
+		// Let the other listeners see this stop before the thread moves again
+		SyncUtil.getSession().getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (fRm != null) {
+					queueStep();
+				}
+			}
+		});
+	}
+
+	private void queueStep() {
+		SyncUtil.getGdbControl().queueCommand(createStepCommand(),
+				new DataRequestMonitor<MIInfo>(ImmediateExecutor.getInstance(), null) {
+					@Override
+					protected void handleFailure() {
+						if (fRm != null) {
+							fRm.done(getStatus());
+							finish(null);
+						}
+					}
+				});
+	}
+
+	private ICommand<MIInfo> createStepCommand() {
+		switch (fStepType) {
+		case STEP_INTO:
+			return fReverse ? SyncUtil.getCommandFactory().createMIExecReverseStep(fDmc)
+					: SyncUtil.getCommandFactory().createMIExecStep(fDmc);
+		case STEP_OVER:
+			return fReverse ? SyncUtil.getCommandFactory().createMIExecReverseNext(fDmc)
+					: SyncUtil.getCommandFactory().createMIExecNext(fDmc);
+		case STEP_RETURN:
+			IFrameDMContext frameDmc = SyncUtil.getStack().createFrameDMContext(fDmc, 0);
+			return fReverse ? SyncUtil.getCommandFactory().createMIExecUncall(frameDmc)
+					: SyncUtil.getCommandFactory().createMIExecFinish(frameDmc);
+		default:
+			throw new IllegalArgumentException("Unsupported step type; " + fStepType);
+		}
+	}
+
+	/**
+	 * Leave the loop, completing the run with the result if there is one.
+	 * Must be called on the executor.
+	 */
+	private void finish(Result result) {
+		if (fRm == null) {
+			return;
+		}
+		DataRequestMonitor<Result> rm = fRm;
+		fRm = null;
+		fCondition = null;
+		SyncUtil.getSession().removeServiceEventListener(this);
+		if (result != null) {
+			rm.done(result);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return fDmc + " " + fStepType + (fReverse ? " reverse" : "");
+	}
+}
@@ -0,0 +1,456 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIConst;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * The state of every thread at a stop: its data, its backtrace and the
+ * registers of its top frame.
+ * <p>
+ * {@link #capture(int, boolean)} takes it with one <code>-thread-info</code>
+ * and one pass of GDB's Python over the stacks of all the threads, see
+ * {@link PythonLoops#backtraces(int, int)}, so that the number of MI commands
+ * does not grow with the number of threads. Only the registers, when wanted,
+ * take a <code>-data-list-register-values</code> per thread, all queued in
+ * one executor hop. A GDB without Python gets a
+ * <code>-stack-list-frames</code> per thread instead.
+ * <p>
+ * A snapshot is immutable. Strings are interned within it, and frames are
+ * shared: threads blocked at the same place, which is most of them in a large
+ * server, point to the same frame objects. Register values are kept as
+ * arrays indexed by register number, with the register names held once.
+ */
+public class StopSnapshot {
+
+	/**
+	 * A frame, without its level, which is its index in a backtrace.
+	 */
+	public static final class Frame {
+		private final String fAddress;
+		private final String fFunction;
+		private final String fFile;
+		private final int fLine;
+
+		Frame(String address, String function, String file, int line) {
+			fAddress = address;
+			fFunction = function;
+			fFile = file;
+			fLine = line;
+		}
+
+		public String getAddress() {
+			return fAddress;
+		}
+
+		public String getFunction() {
+			return fFunction;
+		}
+
+		public String getFile() {
+			return fFile;
+		}
+
+		public int getLine() {
+			return fLine;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Frame)) {
+				return false;
+			}
+			Frame other = (Frame) obj;
+			return fLine == other.fLine && Objects.equals(fAddress, other.fAddress)
+					&& Objects.equals(fFunction, other.fFunction) && Objects.equals(fFile, other.fFile);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fAddress, fFunction, fFile, fLine);
+		}
+
+		@Override
+		public String toString() {
+			return fAddress + " " + fFunction + " (" + fFile + ":" + fLine + ")";
+		}
+	}
+
+	public static final class ThreadSnapshot {
+		private final String fId;
+		private final String fTargetId;
+		private final String fName;
+		private final String fState;
+		private final Frame[] fFrames;
+		private final String[] fRegisters;
+
+		ThreadSnapshot(String id, String targetId, String name, String state, Frame[] frames, String[] registers) {
+			fId = id;
+			fTargetId = targetId;
+			fName = name;
+			fState = state;
+			fFrames = frames;
+			fRegisters = registers;
+		}
+
+		public String getId() {
+			return fId;
+		}
+
+		public String getTargetId() {
+			return fTargetId;
+		}
+
+		public String getName() {
+			return fName;
+		}
+
+		/**
+		 * @return "stopped" or "running"
+		 */
+		public String getState() {
+			return fState;
+		}
+
+		public int getDepth() {
+			return fFrames.length;
+		}
+
+		public Frame getFrame(int level) {
+			return fFrames[level];
+		}
+
+		public List<Frame> getFrames() {
+			return Collections.unmodifiableList(Arrays.asList(fFrames));
+		}
+
+		/**
+		 * @return the value of a register in the top frame, or
+		 *         <code>null</code> if it was not captured
+		 */
+		public String getRegister(int number) {
+			return number < fRegisters.length ? fRegisters[number] : null;
+		}
+
+		@Override
+		public String toString() {
+			return fId + " " + fName + " " + fState + " " + Arrays.toString(fFrames);
+		}
+	}
+
+	private final ThreadSnapshot[] fThreads;
+	private final String[] fRegisterNames;
+	private final int fFrameCount;
+
+	private StopSnapshot(ThreadSnapshot[] threads, String[] registerNames, int frameCount) {
+		fThreads = threads;
+		fRegisterNames = registerNames;
+		fFrameCount = frameCount;
+	}
+
+	public List<ThreadSnapshot> getThreads() {
+		return Collections.unmodifiableList(Arrays.asList(fThreads));
+	}
+
+	public ThreadSnapshot getThread(String id) {
+		for (ThreadSnapshot thread : fThreads) {
+			if (thread.fId.equals(id)) {
+				return thread;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the register names, indexed by register number
+	 */
+	public List<String> getRegisterNames() {
+		return Collections.unmodifiableList(Arrays.asList(fRegisterNames));
+	}
+
+	/**
+	 * @return the number of distinct frames in the snapshot
+	 */
+	public int getDistinctFrameCount() {
+		return fFrameCount;
+	}
+
+	/**
+	 * Capture the state of every thread.
+	 *
+	 * @param maxDepth
+	 *            the number of frames to keep per thread, or 0 for all of them
+	 * @param registers
+	 *            whether to capture the registers of the top frames
+	 */
+	public static StopSnapshot capture(final int maxDepth, final boolean registers) throws Throwable {
+		Query<StopSnapshot> query = new Query<StopSnapshot>() {
+			@Override
+			protected void execute(final DataRequestMonitor<StopSnapshot> rm) {
+				new Builder(maxDepth, registers, rm).start();
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		return query.get(DefaultTimeouts.get(ETimeout.captureSnapshot), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Collects the command results on the executor.
+	 */
+	private static class Builder {
+		private final int fMaxDepth;
+		private final boolean fRegisters;
+		private final DataRequestMonitor<StopSnapshot> fRm;
+		private final Map<String, String> fStrings = new HashMap<>();
+		private final Map<Frame, Frame> fFrames = new HashMap<>();
+		private String[] fRegisterNames = new String[0];
+
+		Builder(int maxDepth, boolean registers, DataRequestMonitor<StopSnapshot> rm) {
+			fMaxDepth = maxDepth;
+			fRegisters = registers;
+			fRm = rm;
+		}
+
+		void start() {
+			if (fRegisters) {
+				SyncUtil.getGdbControl().queueCommand(
+						new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-data-list-register-names"),
+						new ImmediateDataRequestMonitor<MIInfo>(fRm) {
+							@Override
+							protected void handleSuccess() {
+								MIValue[] names = MIResultsUtil.getListElements(
+										MIResultsUtil.getValue(MIResultsUtil.getResults(getData()), "register-names"));
+								fRegisterNames = new String[names.length];
+								for (int i = 0; i < names.length; i++) {
+									// Unused register numbers have an empty name
+									fRegisterNames[i] = names[i] instanceof MIConst
+											? intern(((MIConst) names[i]).getString()) : "";
+								}
+								listThreads();
+							}
+						});
+			} else {
+				listThreads();
+			}
+		}
+
+		/**
+		 * Only queued once the register names are in, so that a failure to get
+		 * them completes the request monitor once and for all.
+		 */
+		private void listThreads() {
+			SyncUtil.getGdbControl().queueCommand(
+					new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-thread-info"),
+					new ImmediateDataRequestMonitor<MIInfo>(fRm) {
+						@Override
+						protected void handleSuccess() {
+							fetchThreads(MIResultsUtil.getListElements(
+									MIResultsUtil.getValue(MIResultsUtil.getResults(getData()), "threads")));
+						}
+					});
+		}
+
+		private void fetchThreads(MIValue[] threads) {
+			final int count = threads.length;
+			final String[][] info = new String[count][];
+			for (int i = 0; i < count; i++) {
+				MIResult[] fields = MIResultsUtil.getTuple(threads[i]);
+				info[i] = new String[] { intern(MIResultsUtil.getString(fields, "id")),
+						intern(MIResultsUtil.getString(fields, "target-id")),
+						intern(MIResultsUtil.getString(fields, "name")),
+						intern(MIResultsUtil.getString(fields, "state")) };
+			}
+
+			// Defining the helpers again is cheap, and keeps this independent
+			// of any PythonLoops instance
+			SyncUtil.getGdbControl().queueCommand(PythonLoops.createCommand(PythonLoops.getDefinition()),
+					new ImmediateDataRequestMonitor<MIInfo>());
+			SyncUtil.getGdbControl().queueCommand(
+					PythonLoops.createCommand(PythonLoops.getBacktracesStatement(fMaxDepth)),
+					new ImmediateDataRequestMonitor<MIInfo>() {
+						@Override
+						protected void handleCompleted() {
+							if (isSuccess()) {
+								fetchRegisters(info, createFrames(info, PythonLoops.getResult(getData())));
+							} else {
+								// No Python in this GDB
+								fetchRegisters(info, null);
+							}
+						}
+					});
+		}
+
+		/**
+		 * Read the registers of each stopped thread, if wanted, and its frames
+		 * too if the Python pass could not give them.
+		 */
+		private void fetchRegisters(final String[][] info, Frame[][] pythonFrames) {
+			final int count = info.length;
+			final Frame[][] frames = pythonFrames != null ? pythonFrames : new Frame[count][];
+			final String[][] registers = new String[count][];
+
+			CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), fRm) {
+				@Override
+				protected void handleSuccess() {
+					ThreadSnapshot[] snapshots = new ThreadSnapshot[count];
+					for (int i = 0; i < count; i++) {
+						snapshots[i] = new ThreadSnapshot(info[i][0], info[i][1], info[i][2], info[i][3],
+								frames[i] != null ? frames[i] : new Frame[0],
+								registers[i] != null ? registers[i] : new String[0]);
+					}
+					fRm.done(new StopSnapshot(snapshots, fRegisterNames, fFrames.size()));
+				}
+			};
+
+			int commands = 0;
+			for (int i = 0; i < count; i++) {
+				final int index = i;
+				String id = info[i][0];
+				if (!"stopped".equals(info[i][3])) {
+					// A running thread of a non-stop session has no frames to list
+					continue;
+				}
+
+				if (pythonFrames == null) {
+					String[] params = fMaxDepth > 0 ? new String[] { "0", Integer.toString(fMaxDepth - 1) }
+							: new String[0];
+					SyncUtil.getGdbControl().queueCommand(
+							new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-stack-list-frames",
+									new String[] { "--thread", id }, params),
+							new ImmediateDataRequestMonitor<MIInfo>(crm) {
+								@Override
+								protected void handleSuccess() {
+									frames[index] = createFrames(MIResultsUtil.getListElements(
+											MIResultsUtil.getValue(MIResultsUtil.getResults(getData()), "stack")));
+									crm.done();
+								}
+							});
+					commands++;
+				}
+
+				if (fRegisters) {
+					SyncUtil.getGdbControl().queueCommand(
+							new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-data-list-register-values",
+									new String[] { "--thread", id, "--frame", "0" }, new String[] { "x" }),
+							new ImmediateDataRequestMonitor<MIInfo>(crm) {
+								@Override
+								protected void handleSuccess() {
+									registers[index] = createRegisters(MIResultsUtil.getListElements(
+											MIResultsUtil.getValue(MIResultsUtil.getResults(getData()),
+													"register-values")));
+									crm.done();
+								}
+							});
+					commands++;
+				}
+			}
+			crm.setDoneCount(commands);
+		}
+
+		/**
+		 * @return the frames of each thread, from the rows of the Python pass
+		 */
+		private Frame[][] createFrames(String[][] info, PythonLoops.Result result) {
+			Map<String, List<Frame>> byThread = new HashMap<>();
+			for (String[] row : result.getRows()) {
+				List<Frame> frames = byThread.get(row[0]);
+				if (frames == null) {
+					frames = new ArrayList<>();
+					byThread.put(row[0], frames);
+				}
+				int line;
+				try {
+					line = Integer.parseInt(row[4]);
+				} catch (NumberFormatException e) {
+					line = 0;
+				}
+				frames.add(share(new Frame(intern(row[1]), intern(emptyToNull(row[2])), intern(emptyToNull(row[3])),
+						line)));
+			}
+			Frame[][] frames = new Frame[info.length][];
+			for (int i = 0; i < info.length; i++) {
+				List<Frame> threadFrames = byThread.get(info[i][0]);
+				if (threadFrames != null) {
+					frames[i] = threadFrames.toArray(new Frame[threadFrames.size()]);
+				}
+			}
+			return frames;
+		}
+
+		private static String emptyToNull(String value) {
+			return value.isEmpty() ? null : value;
+		}
+
+		private Frame share(Frame frame) {
+			Frame shared = fFrames.get(frame);
+			if (shared == null) {
+				fFrames.put(frame, frame);
+				shared = frame;
+			}
+			return shared;
+		}
+
+		private Frame[] createFrames(MIValue[] stack) {
+			Frame[] frames = new Frame[stack.length];
+			for (int i = 0; i < stack.length; i++) {
+				MIResult[] fields = MIResultsUtil.getTuple(stack[i]);
+				frames[i] = share(new Frame(intern(MIResultsUtil.getString(fields, "addr")),
+						intern(MIResultsUtil.getString(fields, "func")),
+						intern(MIResultsUtil.getString(fields, "file")),
+						MIResultsUtil.getInt(fields, "line", 0)));
+			}
+			return frames;
+		}
+
+		private String[] createRegisters(MIValue[] values) {
+			List<String> registers = new ArrayList<>();
+			for (MIValue value : values) {
+				MIResult[] fields = MIResultsUtil.getTuple(value);
+				int number = MIResultsUtil.getInt(fields, "number", -1);
+				if (number < 0) {
+					continue;
+				}
+				while (registers.size() <= number) {
+					registers.add(null);
+				}
+				registers.set(number, intern(MIResultsUtil.getString(fields, "value")));
+			}
+			return registers.toArray(new String[registers.size()]);
+		}
+
+		private String intern(String value) {
+			if (value == null) {
+				return null;
+			}
+			String shared = fStrings.get(value);
+			if (shared == null) {
+				fStrings.put(value, value);
+				shared = value;
+			}
+			return shared;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return fThreads.length + " threads, " + fFrameCount + " distinct frames";
+	}
+}
@@ -22,13 +22,19 @@ import static org.junit.Assert.fail;
 
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import org.eclipse.cdt.core.IAddress;
 import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
@@ -58,8 +64,8 @@ import org.eclipse.cdt.dsf.debug.service.ISourceLookup;
 import org.eclipse.cdt.dsf.debug.service.ISourceLookup.ISourceLookupDMContext;
 import org.eclipse.cdt.dsf.debug.service.IStack.IFrameDMContext;
 import org.eclipse.cdt.dsf.debug.service.IStack.IFrameDMData;
-import org.eclipse.cdt.dsf.debug.service.IStack.IVariableDMContext;
 import org.eclipse.cdt.dsf.debug.service.IStack.IVariableDMData;
+import org.eclipse.cdt.dsf.debug.service.command.ICommandControlService.ICommandControlDMContext;
 import org.eclipse.cdt.dsf.gdb.launching.GdbLaunch;
 import org.eclipse.cdt.dsf.gdb.service.IGDBMemory2;
 import org.eclipse.cdt.dsf.gdb.service.IGDBProcesses;
@@ -68,12 +74,16 @@ import org.eclipse.cdt.dsf.mi.service.IMIExecutionDMContext;
 import org.eclipse.cdt.dsf.mi.service.IMIRunControl;
 import org.eclipse.cdt.dsf.mi.service.MIStack;
 import org.eclipse.cdt.dsf.mi.service.command.CommandFactory;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
 import org.eclipse.cdt.dsf.mi.service.command.events.MIRunningEvent;
 import org.eclipse.cdt.dsf.mi.service.command.events.MISignalEvent;
 import org.eclipse.cdt.dsf.mi.service.command.events.MIStoppedEvent;
 import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakInsertInfo;
 import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakListInfo;
 import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakpoint;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
 import org.eclipse.cdt.dsf.service.DsfServicesTracker;
 import org.eclipse.cdt.dsf.service.DsfSession;
 import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
@@ -100,6 +110,9 @@ public class SyncUtil {
 
 	private static ISourceLookup fSourceLookup;
 
+	private static SessionContextCache fContextCache;
+	private static RegisterCache fRegisterCache;
+
 	// Initialize some common things, once the session has been established
 	public static void initialize(DsfSession session) throws Exception {
 		fSession = session;
@@ -118,6 +131,8 @@ public class SyncUtil {
 				fMemory = tracker.getService(IMemory.class);
 				fCommandFactory = fGdbControl.getCommandFactory();
 				fSourceLookup = tracker.getService(ISourceLookup.class);
+				fContextCache = new SessionContextCache(fSession, fGdbControl, fProcessesService);
+				fRegisterCache = new RegisterCache(fSession, fGdbControl);
 
 				tracker.dispose();
 			}
@@ -125,6 +140,50 @@ public class SyncUtil {
 		fSession.getExecutor().submit(runnable).get();
 	}
 
+	/**
+	 * @return the container and thread contexts of the session, which
+	 *         {@link #getContainerContext()} and
+	 *         {@link #getExecutionContexts()} go through
+	 */
+	public static SessionContextCache getContextCache() {
+		return fContextCache;
+	}
+
+	/**
+	 * @return the registers of the frames of the session, which
+	 *         {@link #getRegisters(IFrameDMContext, String)} and the other
+	 *         register methods go through
+	 */
+	public static RegisterCache getRegisterCache() {
+		return fRegisterCache;
+	}
+
+	// Accessors for the other framework helpers, which share the services
+	// fetched by initialize()
+	static DsfSession getSession() {
+		return fSession;
+	}
+
+	static IGDBControl getGdbControl() {
+		return fGdbControl;
+	}
+
+	static CommandFactory getCommandFactory() {
+		return fCommandFactory;
+	}
+
+	static IExpressions getExpressions() {
+		return fExpressions;
+	}
+
+	static IMIRunControl getRunControl() {
+		return fRunControl;
+	}
+
+	static MIStack getStack() {
+		return fStack;
+	}
+
 	public static MIStoppedEvent step(int numSteps, StepType stepType) throws Throwable {
 		return step(numSteps,stepType, false);
 	}
@@ -240,6 +299,87 @@ public class SyncUtil {
         return info.getMIBreakpoints()[0].getNumber();
 	}
 
+	/**
+	 * Insert a breakpoint that only stops when the condition holds, and not
+	 * before it has been hit <code>ignoreCount</code> times. Where the
+	 * condition is evaluated is set by
+	 * {@link #setBreakpointConditionEvaluation(String)}; the ignore count is
+	 * always kept by GDB on the host, see
+	 * {@link #setBreakpointIgnoreCount(String, int)}.
+	 *
+	 * @return the breakpoint number
+	 */
+	public static String addConditionalBreakpoint(final String location, final String condition,
+			final int ignoreCount, final boolean temporary) throws Throwable {
+		final IBreakpointsTargetDMContext bpTargetDmc = getBreakpointsTargetContext();
+
+		Query<MIBreakInsertInfo> query = new Query<MIBreakInsertInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIBreakInsertInfo> rm) {
+				fGdbControl.queueCommand(
+						fCommandFactory.createMIBreakInsert(bpTargetDmc, temporary, false, condition, ignoreCount,
+								location, "0"),
+						rm);
+			}
+		};
+
+		fGdbControl.getExecutor().execute(query);
+		MIBreakInsertInfo info = query.get(DefaultTimeouts.get(ETimeout.addBreakpoint), TimeUnit.MILLISECONDS);
+		return info.getMIBreakpoints()[0].getNumber();
+	}
+
+	/**
+	 * Change the condition of a breakpoint; an empty condition removes it.
+	 */
+	public static void setBreakpointCondition(final String number, final String condition) throws Throwable {
+		final IBreakpointsTargetDMContext bpTargetDmc = getBreakpointsTargetContext();
+		executeBreakpointCommand(new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				fGdbControl.queueCommand(
+						fCommandFactory.createMIBreakCondition(bpTargetDmc, Integer.parseInt(number), condition), rm);
+			}
+		});
+	}
+
+	/**
+	 * Have a breakpoint ignore its next <code>ignoreCount</code> hits. The
+	 * count is always kept by GDB on the host, whatever
+	 * {@link #setBreakpointConditionEvaluation(String)} says, so each ignored
+	 * hit still stops the target and is resumed from the host.
+	 */
+	public static void setBreakpointIgnoreCount(final String number, final int ignoreCount) throws Throwable {
+		final IBreakpointsTargetDMContext bpTargetDmc = getBreakpointsTargetContext();
+		executeBreakpointCommand(new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				fGdbControl.queueCommand(
+						fCommandFactory.createMIBreakAfter(bpTargetDmc, Integer.parseInt(number), ignoreCount), rm);
+			}
+		});
+	}
+
+	/**
+	 * Choose where GDB evaluates breakpoint conditions, see
+	 * {@link LaunchGDB#ATTR_BREAKPOINT_CONDITION_EVALUATION}. With
+	 * {@link LaunchGDB#CONDITION_EVALUATION_TARGET} a hit whose condition is
+	 * false is resumed by gdbserver itself, instead of being reported to GDB
+	 * and resumed from the host.
+	 */
+	public static void setBreakpointConditionEvaluation(final String mode) throws Throwable {
+		executeBreakpointCommand(new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				fGdbControl.queueCommand(new MICommand<MIInfo>(fGdbControl.getContext(), "-gdb-set",
+						new String[] { "breakpoint", "condition-evaluation", mode }), rm);
+			}
+		});
+	}
+
+	private static void executeBreakpointCommand(Query<MIInfo> query) throws Throwable {
+		fGdbControl.getExecutor().execute(query);
+		query.get(DefaultTimeouts.get(ETimeout.addBreakpoint), TimeUnit.MILLISECONDS);
+	}
 	
 	public static String[] getBreakpointList(int timeout) throws Throwable {
         IContainerDMContext containerDmc = SyncUtil.getContainerContext();
@@ -263,6 +403,94 @@ public class SyncUtil {
 		return result;
 	}
 
+	/**
+	 * Insert many breakpoints at once. The <code>-break-insert</code> commands
+	 * are all queued in a single executor hop, so GDB receives them back to
+	 * back instead of one per {@link Query}.
+	 * <p>
+	 * Either all the breakpoints are inserted or none is: if an insertion
+	 * fails, the breakpoints GDB accepted are deleted again before the error
+	 * is thrown.
+	 *
+	 * @return the breakpoint numbers, in the order of the locations
+	 */
+	public static String[] addBreakpoints(String[] locations, boolean temporary) throws Throwable {
+		// Allow an extra millisecond per breakpoint on top of the usual timeout
+		MIBreakpoint[] breakpoints = insertBreakpoints(locations, temporary,
+				DefaultTimeouts.get(ETimeout.addBreakpoint) + locations.length);
+		String[] result = new String[breakpoints.length];
+		for (int i = 0; i < breakpoints.length; i++) {
+			result[i] = breakpoints[i].getNumber();
+		}
+		return result;
+	}
+
+	static MIBreakpoint[] insertBreakpoints(final String[] locations, final boolean temporary, int massagedTimeout)
+			throws Throwable {
+		final IBreakpointsTargetDMContext bpTargetDmc = getBreakpointsTargetContext();
+
+		Query<MIBreakpoint[]> query = new Query<MIBreakpoint[]>() {
+			@Override
+			protected void execute(final DataRequestMonitor<MIBreakpoint[]> rm) {
+				final MIBreakpoint[] breakpoints = new MIBreakpoint[locations.length];
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), null) {
+					@Override
+					protected void handleCompleted() {
+						if (isSuccess()) {
+							rm.done(breakpoints);
+							return;
+						}
+
+						// GDB does not notify us of the breakpoints we insert, so
+						// those it accepted would be left behind unknown
+						final IStatus status = getStatus();
+						List<String> numbers = new ArrayList<String>();
+						for (MIBreakpoint bp : breakpoints) {
+							if (bp != null) {
+								numbers.add(bp.getNumber());
+							}
+						}
+						if (numbers.isEmpty()) {
+							rm.setStatus(status);
+							rm.done();
+							return;
+						}
+						fGdbControl.queueCommand(
+								fCommandFactory.createMIBreakDelete(bpTargetDmc, numbers.toArray(new String[numbers.size()])),
+								new DataRequestMonitor<MIInfo>(ImmediateExecutor.getInstance(), null) {
+									@Override
+									protected void handleCompleted() {
+										rm.setStatus(status);
+										rm.done();
+									}
+								});
+					}
+				};
+				for (int i = 0; i < locations.length; i++) {
+					final int index = i;
+					fGdbControl.queueCommand(
+							fCommandFactory.createMIBreakInsert(bpTargetDmc, temporary, false, null, 0, locations[i], "0"),
+							new ImmediateDataRequestMonitor<MIBreakInsertInfo>(crm) {
+								@Override
+								protected void handleSuccess() {
+									breakpoints[index] = getData().getMIBreakpoints()[0];
+									crm.done();
+								}
+							});
+				}
+				crm.setDoneCount(locations.length);
+			}
+		};
+
+		fGdbControl.getExecutor().execute(query);
+		return query.get(massagedTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	static IBreakpointsTargetDMContext getBreakpointsTargetContext()
+			throws InterruptedException, ExecutionException, TimeoutException {
+		return DMContexts.getAncestorOfType(getContainerContext(), IBreakpointsTargetDMContext.class);
+	}
+
 	private static MIStoppedEvent resumeUntilStopped(final IExecutionDMContext dmc, int massagedTimeout) throws Throwable {
         final ServiceEventWaitor<MIStoppedEvent> eventWaitor =
             new ServiceEventWaitor<MIStoppedEvent>(
@@ -553,6 +781,14 @@ public class SyncUtil {
     }
     
     public static IMIExecutionDMContext createExecutionContext(final IContainerDMContext parentCtx, final int threadId) throws Throwable {
+    	if (parentCtx.equals(fContextCache.getContainerContext())) {
+    		// Reuse the context of a known thread
+    		IMIExecutionDMContext threadDmc = fContextCache.getExecutionContext(threadId);
+    		if (threadDmc != null) {
+    			return threadDmc;
+    		}
+    	}
+
 	    Callable<IMIExecutionDMContext> callable = new Callable<IMIExecutionDMContext>() {
 	        @Override
 			public IMIExecutionDMContext call() throws Exception {
@@ -574,17 +810,23 @@ public class SyncUtil {
 		 */
     	enum ETimeout {
     		addBreakpoint,
+    		captureSnapshot,
     		deleteBreakpoint,
     		getBreakpointList,
     		createExecutionContext,
     		createExpression,
     		getFormattedValue,
+    		getFrameVariables,
+    		getRegisters,
     		getStackFrame,
+    		listChildren,
     		resume,
     		resumeUntilStopped,
     		runToLine,
     		runToLocation,
     		step,
+    		streamTraceFrames,
+    		updateVariableObjects,
     		waitForStop
     	}
 
@@ -603,17 +845,23 @@ public class SyncUtil {
     	private static Map<ETimeout,Integer> sTimeouts = new HashMap<ETimeout, Integer>();
     	static {
     		sTimeouts.put(ETimeout.addBreakpoint, 1000);
+    		sTimeouts.put(ETimeout.captureSnapshot, 5000);
     		sTimeouts.put(ETimeout.deleteBreakpoint, 1000);
     		sTimeouts.put(ETimeout.getBreakpointList, 1000);
     		sTimeouts.put(ETimeout.createExecutionContext, 1000);
     		sTimeouts.put(ETimeout.createExpression, 1000);
     		sTimeouts.put(ETimeout.getFormattedValue, 1000);
+    		sTimeouts.put(ETimeout.getFrameVariables, 2000);
+    		sTimeouts.put(ETimeout.getRegisters, 1000);
     		sTimeouts.put(ETimeout.getStackFrame, 1000);
+    		sTimeouts.put(ETimeout.listChildren, 2000);
     		sTimeouts.put(ETimeout.resume, 1000);
     		sTimeouts.put(ETimeout.resumeUntilStopped, 10000); // 10 seconds
     		sTimeouts.put(ETimeout.runToLine, 10000);	// 10 seconds
     		sTimeouts.put(ETimeout.runToLocation, 10000);	// 10 seconds    		
     		sTimeouts.put(ETimeout.step, 1000);
+    		sTimeouts.put(ETimeout.streamTraceFrames, 2000);
+    		sTimeouts.put(ETimeout.updateVariableObjects, 2000);
     		sTimeouts.put(ETimeout.waitForStop, 10000);	// 10 seconds
     	}
 
@@ -670,31 +918,7 @@ public class SyncUtil {
 	public static IContainerDMContext getContainerContext() throws InterruptedException, ExecutionException, TimeoutException {
 		assert !fProcessesService.getExecutor().isInExecutorThread();
 
-		Query<IContainerDMContext> query = new Query<IContainerDMContext>() {
-			@Override
-			protected void execute(final DataRequestMonitor<IContainerDMContext> rm) {
-				fProcessesService.getProcessesBeingDebugged(
-            			fGdbControl.getContext(), 
-            			new ImmediateDataRequestMonitor<IDMContext[]>() {
-                    @Override
-                    protected void handleCompleted() {
-                    	if (isSuccess()) {
-                    		IDMContext[] contexts = getData();
-                    		assertNotNull("invalid return value from service", contexts);
-                    		assertEquals("unexpected number of processes", 1, contexts.length);
-                    		IDMContext context = contexts[0];    
-                    		assertNotNull("unexpected process context type ", context);
-                    		rm.done((IContainerDMContext)context);
-                    	} else {
-                            rm.done(getStatus());
-                    	}
-                    }
-            	});
-			}
-		};
-		
-		fGdbControl.getExecutor().execute(query);
-		return query.get(TestsPlugin.massageTimeout(2000), TimeUnit.MILLISECONDS);
+		return fContextCache.getContainerContext();
 	}
 
 	/**
@@ -706,31 +930,7 @@ public class SyncUtil {
 	public static IMIExecutionDMContext[] getExecutionContexts() throws InterruptedException, ExecutionException, TimeoutException {
 		assert !fProcessesService.getExecutor().isInExecutorThread();
 
-        final IContainerDMContext containerDmc = SyncUtil.getContainerContext();
-
-		Query<IMIExecutionDMContext[]> query = new Query<IMIExecutionDMContext[]>() {
-			@Override
-			protected void execute(final DataRequestMonitor<IMIExecutionDMContext[]> rm) {
-				fProcessesService.getProcessesBeingDebugged(
-            			containerDmc, 
-            			new ImmediateDataRequestMonitor<IDMContext[]>() {
-                    @Override
-                    protected void handleCompleted() {
-                    	if (isSuccess()) {
-                    		IDMContext[] threads = getData();
-                    		assertNotNull("invalid return value from service", threads);
-                    		rm.setData((IMIExecutionDMContext[])threads);
-                    	} else {
-                            rm.setStatus(getStatus());
-                    	}
-                    	rm.done();
-                    }
-            	});
-			}
-		};
-		
-		fGdbControl.getExecutor().execute(query);
-		return query.get(TestsPlugin.massageTimeout(2000), TimeUnit.MILLISECONDS);
+		return fContextCache.getExecutionContexts();
 	}
 
 	/**
@@ -816,47 +1016,288 @@ public class SyncUtil {
  		return event;
     }
 	
+    /**
+     * Get the locals of a frame, with their values, from
+     * {@link #getFrameVariables(IFrameDMContext, boolean, int)}.
+     *
+     * @return the locals, or <code>null</code> if GDB could not list them
+     */
     public static IVariableDMData[] getLocals(final IFrameDMContext frameDmc) throws Throwable {
-    	Query<IVariableDMData[]> query = new Query<IVariableDMData[]>() {
+    	List<FrameVariable> variables;
+    	try {
+    		variables = getFrameVariables(frameDmc, false, 0);
+    	} catch (ExecutionException e) {
+    		return null;
+    	}
+    	List<IVariableDMData> locals = new ArrayList<IVariableDMData>(variables.size());
+    	for (FrameVariable variable : variables) {
+    		if (!variable.isArgument()) {
+    			locals.add(variable);
+    		}
+    	}
+    	return locals.toArray(new IVariableDMData[locals.size()]);
+    }
+
+    /**
+     * Get the arguments and locals of a frame, with their values, using a
+     * single <code>-stack-list-variables</code> instead of one request per
+     * variable.
+     *
+     * @param frameDmc		the frame
+     * @param simpleValues	only fetch the values of scalars, and the types of all
+     *						variables, to avoid printing large arrays and structures
+     * @param maxElements	the most array elements and string characters GDB prints
+     *						in a value, through its <code>print elements</code> setting,
+     *						or 0 to keep the setting as it is
+     * @return the arguments followed by the locals, as GDB lists them
+     */
+    public static List<FrameVariable> getFrameVariables(final IFrameDMContext frameDmc, final boolean simpleValues,
+    		final int maxElements) throws Throwable {
+    	Query<List<FrameVariable>> query = new Query<List<FrameVariable>>() {
     		@Override
-    		protected void execute(final DataRequestMonitor<IVariableDMData[]> rm) {
-    			fStack.getLocals(frameDmc, new ImmediateDataRequestMonitor<IVariableDMContext[]>() {
-    				@Override
-    				protected void handleCompleted() {
-    					if (isSuccess()) {
-    						IVariableDMContext[] varDmcs = getData();
-    						final List<IVariableDMData> localsDMData = new ArrayList<IVariableDMData>();
-    						final CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm) {
-    							@Override
-    							protected void handleSuccess() {
-    								rm.done(localsDMData.toArray(new IVariableDMData[localsDMData.size()]));
-    							};
-    						};
-
-    						for (IVariableDMContext varDmc : varDmcs) {
-    							fStack.getVariableData(varDmc, 
-    									new ImmediateDataRequestMonitor<IVariableDMData>(crm) {
-    								@Override
-    								public void handleSuccess() {
-    									localsDMData.add(getData());
-    									crm.done();
+    		protected void execute(final DataRequestMonitor<List<FrameVariable>> rm) {
+    			String printValues = simpleValues ? "--simple-values" : "--all-values";
+    			final String[] previous = setPrintElements(maxElements);
+    			fGdbControl.queueCommand(
+    					new MICommand<MIInfo>(frameDmc, "-stack-list-variables", new String[] { printValues }),
+    					new ImmediateDataRequestMonitor<MIInfo>(rm) {
+    						@Override
+    						protected void handleCompleted() {
+    							restorePrintElements(previous);
+    							super.handleCompleted();
+    						}
+
+    						@Override
+    						protected void handleSuccess() {
+    							MIValue[] variables = MIResultsUtil.getListElements(
+    									MIResultsUtil.getValue(MIResultsUtil.getResults(getData()), "variables"));
+    							List<FrameVariable> result = new ArrayList<FrameVariable>(variables.length);
+    							for (MIValue variable : variables) {
+    								MIResult[] fields = MIResultsUtil.getTuple(variable);
+    								result.add(new FrameVariable(MIResultsUtil.getString(fields, "name"),
+    										MIResultsUtil.getString(fields, "type"), MIResultsUtil.getString(fields, "value"),
+    										"1".equals(MIResultsUtil.getString(fields, "arg"))));
+    							}
+    							rm.done(result);
+    						}
+    					});
+    		}
+    	};
+
+    	fSession.getExecutor().execute(query);
+    	return query.get(DefaultTimeouts.get(ETimeout.getFrameVariables), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Streaming variant of {@link #getFrameVariables(IFrameDMContext, boolean, int)}
+     * for frames with very many or very large variables.
+     * <p>
+     * The variables are listed with <code>--simple-values</code>, which gives
+     * the types of all of them and the values of the scalars. Only the values
+     * of the arrays, structures and unions are then evaluated by name,
+     * <code>batchSize</code> variables at a time, with the next batch sent to
+     * GDB as soon as the previous one is answered. Each variable is handed to
+     * the consumer, on the calling thread, as soon as its batch is complete. A
+     * shadowed aggregate cannot be told apart from the variable hiding it by
+     * name, so it is handed over without a value.
+     *
+     * @param maxElements	as for {@link #getFrameVariables(IFrameDMContext, boolean, int)};
+     *						the setting is restored once the stream ends
+     * @return the number of variables handed to the consumer
+     */
+    public static int streamFrameVariables(final IFrameDMContext frameDmc, final int batchSize,
+    		final int maxElements, Consumer<FrameVariable> consumer) throws Throwable {
+    	assert batchSize > 0;
+    	final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+    	final Object endOfStream = new Object();
+
+    	fSession.getExecutor().execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			final String[] previous = setPrintElements(maxElements);
+    			fGdbControl.queueCommand(
+    					new MICommand<MIInfo>(frameDmc, "-stack-list-variables", new String[] { "--simple-values" }),
+    					new DataRequestMonitor<MIInfo>(ImmediateExecutor.getInstance(), null) {
+    						@Override
+    						protected void handleCompleted() {
+    							if (!isSuccess()) {
+    								restorePrintElements(previous);
+    								queue.add(new CoreException(getStatus()));
+    								return;
+    							}
+    							MIValue[] list = MIResultsUtil.getListElements(
+    									MIResultsUtil.getValue(MIResultsUtil.getResults(getData()), "variables"));
+    							FrameVariable[] variables = new FrameVariable[list.length];
+    							Set<String> names = new HashSet<String>();
+    							Set<String> shadowed = new HashSet<String>();
+    							for (int i = 0; i < list.length; i++) {
+    								MIResult[] fields = MIResultsUtil.getTuple(list[i]);
+    								String name = MIResultsUtil.getString(fields, "name");
+    								variables[i] = new FrameVariable(name, MIResultsUtil.getString(fields, "type"),
+    										MIResultsUtil.getString(fields, "value"),
+    										"1".equals(MIResultsUtil.getString(fields, "arg")));
+    								if (!names.add(name)) {
+    									shadowed.add(name);
     								}
-    							});
+    							}
+    							streamFrameVariableValues(frameDmc, variables, shadowed, 0, batchSize, previous, queue,
+    									endOfStream);
+    						}
+    					});
+    		}
+    	});
+
+    	int count = 0;
+    	int timeout = DefaultTimeouts.get(ETimeout.getFrameVariables);
+    	while (true) {
+    		Object item = queue.poll(timeout, TimeUnit.MILLISECONDS);
+    		if (item == null) {
+    			throw new TimeoutException("Timed out streaming the variables of " + frameDmc);
+    		}
+    		if (item == endOfStream) {
+    			return count;
+    		}
+    		if (item instanceof CoreException) {
+    			throw (CoreException) item;
+    		}
+    		consumer.accept((FrameVariable) item);
+    		count++;
+    	}
+    }
+
+    /**
+     * Evaluate the aggregates of the batches from <code>from</code> on, and
+     * queue the variables of each batch once complete. Batches of scalars
+     * only are queued right away.
+     */
+    private static void streamFrameVariableValues(final IFrameDMContext frameDmc, final FrameVariable[] variables,
+    		final Set<String> shadowed, int from, final int batchSize, final String[] previousPrintElements,
+    		final BlockingQueue<Object> queue, final Object endOfStream) {
+    	while (from < variables.length) {
+    		final int start = from;
+    		final int to = Math.min(from + batchSize, variables.length);
+    		final FrameVariable[] batch = Arrays.copyOfRange(variables, start, to);
+    		List<Integer> aggregates = new ArrayList<Integer>();
+    		for (int i = 0; i < batch.length; i++) {
+    			if (batch[i].getValue() == null && !shadowed.contains(batch[i].getName())) {
+    				aggregates.add(i);
+    			}
+    		}
+    		if (aggregates.isEmpty()) {
+    			queue.addAll(Arrays.asList(batch));
+    			from = to;
+    			continue;
+    		}
+
+    		CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), null) {
+    			@Override
+    			protected void handleCompleted() {
+    				queue.addAll(Arrays.asList(batch));
+    				streamFrameVariableValues(frameDmc, variables, shadowed, to, batchSize, previousPrintElements,
+    						queue, endOfStream);
+    			}
+    		};
+    		for (final int index : aggregates) {
+    			final FrameVariable variable = batch[index];
+    			fGdbControl.queueCommand(
+    					new MICommand<MIInfo>(frameDmc, "-data-evaluate-expression",
+    							new String[] { variable.getName() }),
+    					new DataRequestMonitor<MIInfo>(ImmediateExecutor.getInstance(), crm) {
+    						@Override
+    						protected void handleCompleted() {
+    							// A variable that cannot be evaluated is reported without a value
+    							if (isSuccess()) {
+    								batch[index] = new FrameVariable(variable.getName(), variable.getType(),
+    										MIResultsUtil.getString(MIResultsUtil.getResults(getData()), "value"),
+    										variable.isArgument());
+    							}
+    							crm.done();
     						}
-    						crm.setDoneCount(varDmcs.length);    			        		
-    					} else {
-    						rm.done();
-    					}
+    					});
+    		}
+    		crm.setDoneCount(aggregates.size());
+    		return;
+    	}
+    	restorePrintElements(previousPrintElements);
+    	queue.add(endOfStream);
+    }
+
+    /**
+     * Queue the commands that set GDB's <code>print elements</code>, after
+     * reading its current value, so that GDB itself stops formatting arrays
+     * and strings at that many elements. Must be called on the executor; the
+     * commands queued after these see the new setting.
+     *
+     * @param maxElements	the new setting, or 0 to leave it as it is
+     * @return the holder of the previous setting, filled in once GDB answers,
+     *         to give to {@link #restorePrintElements(String[])}
+     */
+    private static String[] setPrintElements(int maxElements) {
+    	final String[] previous = new String[1];
+    	if (maxElements <= 0) {
+    		return previous;
+    	}
+    	ICommandControlDMContext controlDmc = fGdbControl.getContext();
+    	fGdbControl.queueCommand(
+    			new MICommand<MIInfo>(controlDmc, "-gdb-show", new String[] { "print", "elements" }),
+    			new ImmediateDataRequestMonitor<MIInfo>() {
+    				@Override
+    				protected void handleSuccess() {
+    					previous[0] = MIResultsUtil.getString(MIResultsUtil.getResults(getData()), "value");
     				}
     			});
-    		}	
-    	};
+    	fGdbControl.queueCommand(
+    			new MICommand<MIInfo>(controlDmc, "-gdb-set",
+    					new String[] { "print", "elements", Integer.toString(maxElements) }),
+    			new ImmediateDataRequestMonitor<MIInfo>());
+    	return previous;
+    }
 
-    	fSession.getExecutor().execute(query);
-    	IVariableDMData[] result = query.get(TestsPlugin.massageTimeout(500), TimeUnit.MILLISECONDS);
-    	return result;
+    /**
+     * Put back the setting read by {@link #setPrintElements(int)}, if it was
+     * changed.
+     */
+    private static void restorePrintElements(String[] previous) {
+    	if (previous[0] != null) {
+    		fGdbControl.queueCommand(
+    				new MICommand<MIInfo>(fGdbControl.getContext(), "-gdb-set",
+    						new String[] { "print", "elements", previous[0] }),
+    				new ImmediateDataRequestMonitor<MIInfo>());
+    	}
     }
 
+	/**
+	 * Get the registers of a frame. All of them are read with a single
+	 * command at the first lookup in the frame, and kept until the program
+	 * resumes; see {@link RegisterCache}.
+	 *
+	 * @param pattern	glob patterns separated by commas, e.g. "$e?x, $r*",
+	 * 					or <code>null</code> for all the registers
+	 * @return			the values, by register name, in register number order
+	 */
+	@ThreadSafeAndProhibitedFromDsfExecutor("fSession.getExecutor()")
+	public static Map<String, String> getRegisters(IFrameDMContext frameDmc, String pattern) throws Throwable {
+		return fRegisterCache.getRegisters(frameDmc, pattern);
+	}
+
+	/**
+	 * Get the registers of a frame that are in a register group, such as
+	 * "general" or "float".
+	 */
+	@ThreadSafeAndProhibitedFromDsfExecutor("fSession.getExecutor()")
+	public static Map<String, String> getRegisterGroup(IFrameDMContext frameDmc, String group) throws Throwable {
+		return fRegisterCache.getRegisterGroup(frameDmc, group);
+	}
+
+	/**
+	 * Get the registers of the innermost frame of the thread that changed
+	 * since they were last read, at a previous stop.
+	 */
+	@ThreadSafeAndProhibitedFromDsfExecutor("fSession.getExecutor()")
+	public static Map<String, String> getChangedRegisters(IFrameDMContext frameDmc) throws Throwable {
+		return fRegisterCache.getChangedRegisters(frameDmc);
+	}
+
 	/**
 	 * Read data from memory.
 	 *
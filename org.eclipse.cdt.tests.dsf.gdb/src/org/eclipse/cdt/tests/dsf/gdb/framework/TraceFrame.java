@@ -0,0 +1,56 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The data a tracepoint collected on one hit, as returned by
+ * <code>-trace-frame-collected</code>.
+ */
+public class TraceFrame {
+	private final int fFrameNumber;
+	private final String fTracepoint;
+	private final Map<String, String> fValues;
+	private final Map<String, String> fRegisters;
+
+	TraceFrame(int frameNumber, String tracepoint, Map<String, String> values, Map<String, String> registers) {
+		fFrameNumber = frameNumber;
+		fTracepoint = tracepoint;
+		fValues = Collections.unmodifiableMap(values);
+		fRegisters = Collections.unmodifiableMap(registers);
+	}
+
+	public int getFrameNumber() {
+		return fFrameNumber;
+	}
+
+	/**
+	 * @return the number of the tracepoint that collected the frame
+	 */
+	public String getTracepoint() {
+		return fTracepoint;
+	}
+
+	/**
+	 * @return the collected variables and expressions, by name
+	 */
+	public Map<String, String> getValues() {
+		return fValues;
+	}
+
+	public String getValue(String expression) {
+		return fValues.get(expression);
+	}
+
+	/**
+	 * @return the collected registers, by register number
+	 */
+	public Map<String, String> getRegisters() {
+		return fRegisters;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + fFrameNumber + " (" + fTracepoint + ") " + fValues;
+	}
+}
@@ -0,0 +1,288 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IBreakpoints.IBreakpointsTargetDMContext;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIBreakInsertInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+import org.eclipse.core.runtime.CoreException;
+
+/**
+ * Tracepoints, for observing a target through gdbserver without stopping it.
+ * <p>
+ * Tracepoints are defined with their collect actions, tracing is started and
+ * stopped, and the trace frames are then read back with
+ * {@link #streamFrames(int, Consumer)}, which queues the
+ * <code>-trace-find</code> and <code>-trace-frame-collected</code> of a whole
+ * batch of frames at once rather than one frame per round trip.
+ */
+public class Tracepoints {
+
+	private final IBreakpointsTargetDMContext fBpTargetDmc;
+	private final List<String> fNumbers = new ArrayList<>();
+
+	public Tracepoints() throws Throwable {
+		fBpTargetDmc = SyncUtil.getBreakpointsTargetContext();
+	}
+
+	/**
+	 * Define a tracepoint and what it collects on each hit.
+	 *
+	 * @param fast
+	 *            for a fast tracepoint, which gdbserver's in-process agent
+	 *            handles without trapping
+	 * @param condition
+	 *            evaluated by the target, or <code>null</code>
+	 * @param collect
+	 *            the expressions to collect, e.g. <code>"x"</code>,
+	 *            <code>"$regs"</code> or <code>"$locals"</code>
+	 * @return the tracepoint number
+	 */
+	public String add(final String location, final boolean fast, final String condition, final String... collect)
+			throws Throwable {
+		Query<String> query = new Query<String>() {
+			@Override
+			protected void execute(final DataRequestMonitor<String> rm) {
+				SyncUtil.getGdbControl().queueCommand(
+						SyncUtil.getCommandFactory().createMIBreakInsert(fBpTargetDmc, false, fast, condition, 0,
+								location, "0", false, true, false),
+						new ImmediateDataRequestMonitor<MIBreakInsertInfo>(rm) {
+							@Override
+							protected void handleSuccess() {
+								final String number = getData().getMIBreakpoints()[0].getNumber();
+								String[] actions = new String[collect.length];
+								for (int i = 0; i < collect.length; i++) {
+									actions[i] = "collect " + collect[i];
+								}
+								SyncUtil.getGdbControl().queueCommand(
+										SyncUtil.getCommandFactory().createMIBreakCommands(fBpTargetDmc, number,
+												actions),
+										new ImmediateDataRequestMonitor<MIInfo>(rm) {
+											@Override
+											protected void handleSuccess() {
+												rm.done(number);
+											}
+										});
+							}
+						});
+			}
+		};
+		String number = get(query, DefaultTimeouts.get(ETimeout.addBreakpoint));
+		fNumbers.add(number);
+		return number;
+	}
+
+	public void start() throws Throwable {
+		execute("-trace-start");
+	}
+
+	public void stop() throws Throwable {
+		execute("-trace-stop");
+	}
+
+	/**
+	 * @return the number of frames in the trace buffer
+	 */
+	public int getFrameCount() throws Throwable {
+		return MIResultsUtil.getInt(MIResultsUtil.getResults(execute("-trace-status")), "frames", 0);
+	}
+
+	/**
+	 * @return all the trace frames, see {@link #streamFrames(int, Consumer)}
+	 */
+	public List<TraceFrame> getFrames(int batchSize) throws Throwable {
+		List<TraceFrame> frames = new ArrayList<>();
+		streamFrames(batchSize, frames::add);
+		return frames;
+	}
+
+	/**
+	 * Hand over every frame of the trace buffer to the consumer, in order.
+	 * The commands for a batch of frames are queued together, and the next
+	 * batch is requested as soon as one completes, while the caller is still
+	 * consuming the frames of the previous one. Trace frame selection is reset
+	 * at the end.
+	 *
+	 * @return the number of frames
+	 */
+	public int streamFrames(final int batchSize, Consumer<TraceFrame> consumer) throws Throwable {
+		assert batchSize > 0;
+		final int frameCount = getFrameCount();
+		final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+		final Object endOfStream = new Object();
+
+		SyncUtil.getSession().getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				streamFrames(0, frameCount, batchSize, queue, endOfStream);
+			}
+		});
+
+		int count = 0;
+		int timeout = DefaultTimeouts.get(ETimeout.streamTraceFrames);
+		while (true) {
+			Object item = queue.poll(timeout, TimeUnit.MILLISECONDS);
+			if (item == null) {
+				throw new TimeoutException("Timed out streaming the trace frames");
+			}
+			if (item == endOfStream) {
+				return count;
+			}
+			if (item instanceof CoreException) {
+				throw (CoreException) item;
+			}
+			consumer.accept((TraceFrame) item);
+			count++;
+		}
+	}
+
+	/**
+	 * Delete the tracepoints defined through this object with a single
+	 * <code>-break-delete</code>.
+	 */
+	public void dispose() throws Throwable {
+		if (fNumbers.isEmpty()) {
+			return;
+		}
+		final String[] numbers = fNumbers.toArray(new String[fNumbers.size()]);
+		fNumbers.clear();
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(
+						SyncUtil.getCommandFactory().createMIBreakDelete(fBpTargetDmc, numbers), rm);
+			}
+		};
+		get(query, DefaultTimeouts.get(ETimeout.deleteBreakpoint));
+	}
+
+	private void streamFrames(final int from, final int frameCount, final int batchSize,
+			final BlockingQueue<Object> queue, final Object endOfStream) {
+		if (from >= frameCount) {
+			endStream(null, queue, endOfStream);
+			return;
+		}
+
+		final int to = Math.min(from + batchSize, frameCount);
+		final TraceFrame[] batch = new TraceFrame[to - from];
+		CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), null) {
+			@Override
+			protected void handleCompleted() {
+				if (!isSuccess()) {
+					endStream(new CoreException(getStatus()), queue, endOfStream);
+					return;
+				}
+				for (TraceFrame frame : batch) {
+					queue.add(frame);
+				}
+				streamFrames(to, frameCount, batchSize, queue, endOfStream);
+			}
+		};
+
+		// The command queue keeps each -trace-frame-collected right after the
+		// -trace-find that selects its frame
+		for (int i = from; i < to; i++) {
+			final int frameNumber = i;
+			final String[] tracepoint = new String[1];
+			SyncUtil.getGdbControl().queueCommand(
+					new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-trace-find",
+							new String[] { "frame-number", Integer.toString(frameNumber) }),
+					new ImmediateDataRequestMonitor<MIInfo>(crm) {
+						@Override
+						protected void handleSuccess() {
+							tracepoint[0] = MIResultsUtil.getString(MIResultsUtil.getResults(getData()), "tracepoint");
+							crm.done();
+						}
+					});
+			SyncUtil.getGdbControl().queueCommand(
+					new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-trace-frame-collected",
+							new String[] { "--var-print-values", "--all-values", "--comp-print-values",
+									"--all-values" },
+							new String[0]),
+					new ImmediateDataRequestMonitor<MIInfo>(crm) {
+						@Override
+						protected void handleSuccess() {
+							batch[frameNumber - from] = createFrame(frameNumber, tracepoint[0],
+									MIResultsUtil.getResults(getData()));
+							crm.done();
+						}
+					});
+		}
+		crm.setDoneCount(2 * (to - from));
+	}
+
+	/**
+	 * Go back to the live target, whether the stream failed or not, so that
+	 * the commands that follow do not read the trace frame, then end the
+	 * stream.
+	 *
+	 * @param error
+	 *            what made the stream fail, or <code>null</code>
+	 */
+	private static void endStream(final CoreException error, final BlockingQueue<Object> queue,
+			final Object endOfStream) {
+		SyncUtil.getGdbControl().queueCommand(
+				new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), "-trace-find", new String[] { "none" }),
+				new DataRequestMonitor<MIInfo>(ImmediateExecutor.getInstance(), null) {
+					@Override
+					protected void handleCompleted() {
+						if (error != null) {
+							queue.add(error);
+						} else {
+							queue.add(isSuccess() ? endOfStream : new CoreException(getStatus()));
+						}
+					}
+				});
+	}
+
+	private static TraceFrame createFrame(int frameNumber, String tracepoint, MIResult[] results) {
+		Map<String, String> values = new LinkedHashMap<>();
+		for (String list : new String[] { "explicit-variables", "computed-expressions" }) {
+			for (MIValue element : MIResultsUtil.getListElements(MIResultsUtil.getValue(results, list))) {
+				MIResult[] fields = MIResultsUtil.getTuple(element);
+				values.put(MIResultsUtil.getString(fields, "name"), MIResultsUtil.getString(fields, "value"));
+			}
+		}
+
+		Map<String, String> registers = new LinkedHashMap<>();
+		for (MIValue element : MIResultsUtil.getListElements(MIResultsUtil.getValue(results, "registers"))) {
+			MIResult[] fields = MIResultsUtil.getTuple(element);
+			registers.put(MIResultsUtil.getString(fields, "number"), MIResultsUtil.getString(fields, "value"));
+		}
+		return new TraceFrame(frameNumber, tracepoint, values, registers);
+	}
+
+	private MIInfo execute(final String operation) throws Throwable {
+		Query<MIInfo> query = new Query<MIInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(
+						new MICommand<MIInfo>(SyncUtil.getGdbControl().getContext(), operation), rm);
+			}
+		};
+		return get(query, DefaultTimeouts.get(ETimeout.addBreakpoint));
+	}
+
+	private static <V> V get(Query<V> query, int timeout) throws Throwable {
+		SyncUtil.getSession().getExecutor().execute(query);
+		return query.get(timeout, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,331 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.debug.service.IExpressions.IExpressionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IStack.IFrameDMContext;
+import org.eclipse.cdt.dsf.debug.service.command.ICommandControlService.ICommandControlDMContext;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIVarChange;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIVarCreateInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIVarDeleteInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIVarUpdateInfo;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * A pool of MI variable objects, keyed by expression and frame context.
+ * <p>
+ * Each expression is created once with <code>-var-create</code> and then
+ * reused across stops. GDB only reports the variable objects whose value
+ * changed, so {@link #update()} returns a delta instead of the full set of
+ * values.
+ * <p>
+ * Refreshing costs one <code>-var-update</code> per variable object of the
+ * pool: N MI commands for N expressions, pipelined in a single executor hop.
+ * A single <code>-var-update *</code> would also take the pending changes of
+ * the expressions service's variable objects, which GDB would then no longer
+ * report to the service, and <code>-var-create</code> cannot put the pool's
+ * variable objects under a common parent that one update would cover.
+ * <p>
+ * A call that times out is cancelled: its late replies no longer add
+ * variable objects to the pool, and those created too late are deleted again.
+ * Late values are still recorded, as GDB will not report them twice.
+ * <p>
+ * The pool uses the session given to {@link SyncUtil#initialize}. Call
+ * {@link #dispose()} to delete the variable objects from GDB.
+ */
+public class VariableObjectPool {
+
+	/**
+	 * A change reported by {@link VariableObjectPool#update()}.
+	 */
+	public static class Change {
+		private final IFrameDMContext fFrame;
+		private final String fExpression;
+		private final String fValue;
+		private final boolean fInScope;
+
+		Change(IFrameDMContext frame, String expression, String value, boolean inScope) {
+			fFrame = frame;
+			fExpression = expression;
+			fValue = value;
+			fInScope = inScope;
+		}
+
+		public IFrameDMContext getFrame() {
+			return fFrame;
+		}
+
+		public String getExpression() {
+			return fExpression;
+		}
+
+		/** The new value, or <code>null</code> if the expression went out of scope */
+		public String getValue() {
+			return fValue;
+		}
+
+		public boolean isInScope() {
+			return fInScope;
+		}
+
+		@Override
+		public String toString() {
+			return fExpression + "=" + (fInScope ? fValue : "<out of scope>");
+		}
+	}
+
+	private static class Key {
+		private final IFrameDMContext fFrame;
+		private final String fExpression;
+
+		Key(IFrameDMContext frame, String expression) {
+			fFrame = frame;
+			fExpression = expression;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return fFrame.equals(other.fFrame) && fExpression.equals(other.fExpression);
+		}
+
+		@Override
+		public int hashCode() {
+			return fFrame.hashCode() * 31 + fExpression.hashCode();
+		}
+	}
+
+	private static class VarObject {
+		final Key fKey;
+		final String fName;
+		// Written on the executor, read by getValue()
+		volatile String fValue;
+		volatile boolean fInScope = true;
+
+		VarObject(Key key, String name, String value) {
+			fKey = key;
+			fName = name;
+			fValue = value;
+		}
+	}
+
+	// Both maps are only modified on the DSF executor, from within a Query that
+	// has not been cancelled
+	private final Map<Key, VarObject> fVarObjects = new LinkedHashMap<>();
+	private final Map<String, VarObject> fVarObjectsByName = new HashMap<>();
+
+	/**
+	 * Make sure a variable object exists for each of the expressions in the
+	 * given frame, and return the current value of each of them.
+	 * <p>
+	 * All the missing variable objects are created in a single executor hop,
+	 * with their <code>-var-create</code> commands pipelined to GDB.
+	 *
+	 * @return the values, keyed by expression, in the order given
+	 */
+	public synchronized Map<String, String> watch(final IFrameDMContext frameDmc, final String... expressions)
+			throws Throwable {
+		Query<Map<String, String>> query = new Query<Map<String, String>>() {
+			@Override
+			protected void execute(final DataRequestMonitor<Map<String, String>> rm) {
+				if (rm.isCanceled()) {
+					rm.done();
+					return;
+				}
+
+				final Map<String, String> values = new LinkedHashMap<>();
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm) {
+					@Override
+					protected void handleSuccess() {
+						for (String expression : expressions) {
+							values.put(expression, fVarObjects.get(new Key(frameDmc, expression)).fValue);
+						}
+						rm.done(values);
+					}
+				};
+
+				int count = 0;
+				// The same expression given twice must not get two variable objects
+				for (final String expression : new LinkedHashSet<>(Arrays.asList(expressions))) {
+					final Key key = new Key(frameDmc, expression);
+					if (fVarObjects.containsKey(key)) {
+						continue;
+					}
+
+					IExpressionDMContext exprDmc = SyncUtil.getExpressions().createExpression(frameDmc, expression);
+					SyncUtil.getGdbControl().queueCommand(
+							SyncUtil.getCommandFactory().createMIVarCreate(exprDmc, expression),
+							new ImmediateDataRequestMonitor<MIVarCreateInfo>(crm) {
+								@Override
+								protected void handleCancel() {
+									if (getStatus().isOK() && getData() != null) {
+										// Created after the caller gave up, so nothing would track it
+										SyncUtil.getGdbControl().queueCommand(
+												SyncUtil.getCommandFactory().createMIVarDelete(
+														SyncUtil.getGdbControl().getContext(), getData().getName()),
+												new ImmediateDataRequestMonitor<MIVarDeleteInfo>());
+									}
+									super.handleCancel();
+								}
+
+								@Override
+								protected void handleSuccess() {
+									VarObject varObj = new VarObject(key, getData().getName(), getData().getValue());
+									fVarObjects.put(key, varObj);
+									fVarObjectsByName.put(varObj.fName, varObj);
+									crm.done();
+								}
+							});
+					count++;
+				}
+				crm.setDoneCount(count);
+			}
+		};
+
+		return execute(query);
+	}
+
+	/**
+	 * Refresh every variable object of the pool, with one
+	 * <code>-var-update</code> each, pipelined; see the class comment for why
+	 * it is not a single command. This should be called once per stop.
+	 *
+	 * @return the variable objects whose value or scope changed since the last
+	 *         call, in the order of the pool
+	 */
+	public synchronized List<Change> update() throws Throwable {
+		Query<List<Change>> query = new Query<List<Change>>() {
+			@Override
+			protected void execute(final DataRequestMonitor<List<Change>> rm) {
+				if (rm.isCanceled() || fVarObjects.isEmpty()) {
+					rm.done(Collections.<Change> emptyList());
+					return;
+				}
+
+				final List<Change> changes = new ArrayList<>();
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm) {
+					@Override
+					protected void handleSuccess() {
+						rm.done(changes);
+					}
+				};
+
+				// By name, so that the variable objects of the expressions
+				// service keep their pending changes
+				ICommandControlDMContext controlDmc = SyncUtil.getGdbControl().getContext();
+				for (VarObject varObj : fVarObjects.values()) {
+					SyncUtil.getGdbControl().queueCommand(
+							SyncUtil.getCommandFactory().createMIVarUpdate(controlDmc, varObj.fName),
+							new ImmediateDataRequestMonitor<MIVarUpdateInfo>(crm) {
+								@Override
+								protected void handleCompleted() {
+									// Applied even once the call timed out, as GDB
+									// will not report these changes again
+									if (getStatus().isOK() && getData() != null) {
+										apply(getData());
+									}
+									super.handleCompleted();
+								}
+
+								@Override
+								protected void handleSuccess() {
+									crm.done();
+								}
+
+								private void apply(MIVarUpdateInfo info) {
+									for (MIVarChange change : info.getMIVarChanges()) {
+										VarObject changed = fVarObjectsByName.get(change.getVarName());
+										if (changed == null) {
+											// A child
+											continue;
+										}
+
+										changed.fInScope = change.isInScope();
+										changed.fValue = changed.fInScope ? change.getValue() : null;
+										changes.add(new Change(changed.fKey.fFrame, changed.fKey.fExpression,
+												changed.fValue, changed.fInScope));
+									}
+								}
+							});
+				}
+				crm.setDoneCount(fVarObjects.size());
+			}
+		};
+
+		return execute(query);
+	}
+
+	/**
+	 * @return the last known value of an expression of the pool, without
+	 *         going to GDB, or <code>null</code> if it is not watched or out
+	 *         of scope
+	 */
+	public synchronized String getValue(IFrameDMContext frameDmc, String expression) {
+		VarObject varObj = fVarObjects.get(new Key(frameDmc, expression));
+		return varObj != null ? varObj.fValue : null;
+	}
+
+	public synchronized int size() {
+		return fVarObjects.size();
+	}
+
+	/**
+	 * Delete every variable object of the pool from GDB.
+	 */
+	public synchronized void dispose() throws Throwable {
+		Query<Object> query = new Query<Object>() {
+			@Override
+			protected void execute(final DataRequestMonitor<Object> rm) {
+				if (rm.isCanceled()) {
+					rm.done();
+					return;
+				}
+
+				ICommandControlDMContext controlDmc = SyncUtil.getGdbControl().getContext();
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm);
+				for (VarObject varObj : fVarObjects.values()) {
+					SyncUtil.getGdbControl().queueCommand(
+							SyncUtil.getCommandFactory().createMIVarDelete(controlDmc, varObj.fName),
+							new DataRequestMonitor<MIVarDeleteInfo>(ImmediateExecutor.getInstance(), crm));
+				}
+				crm.setDoneCount(fVarObjects.size());
+				fVarObjects.clear();
+				fVarObjectsByName.clear();
+			}
+		};
+
+		execute(query);
+	}
+
+	/**
+	 * Run the query and wait for it; if it times out, cancel it, so that the
+	 * replies still to come leave the pool alone.
+	 */
+	private static <V> V execute(Query<V> query) throws Throwable {
+		SyncUtil.getSession().getExecutor().execute(query);
+		try {
+			return query.get(DefaultTimeouts.get(ETimeout.updateVariableObjects), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			query.cancel(false);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package org.eclipse.cdt.tests.dsf.gdb.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.eclipse.cdt.dsf.concurrent.CountingRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.DataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateDataRequestMonitor;
+import org.eclipse.cdt.dsf.concurrent.ImmediateExecutor;
+import org.eclipse.cdt.dsf.concurrent.Query;
+import org.eclipse.cdt.dsf.datamodel.DMContexts;
+import org.eclipse.cdt.dsf.datamodel.IDMContext;
+import org.eclipse.cdt.dsf.debug.service.IExpressions.IExpressionDMContext;
+import org.eclipse.cdt.dsf.debug.service.IStack.IFrameDMContext;
+import org.eclipse.cdt.dsf.debug.service.command.ICommandControlService.ICommandControlDMContext;
+import org.eclipse.cdt.dsf.mi.service.command.commands.MICommand;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIResult;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIValue;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIVarCreateInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIVarDeleteInfo;
+import org.eclipse.cdt.dsf.mi.service.command.output.MIVarInfoPathExpressionInfo;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts;
+import org.eclipse.cdt.tests.dsf.gdb.framework.SyncUtil.DefaultTimeouts.ETimeout;
+
+/**
+ * Windowed enumeration of the children of an expression, for arrays and
+ * containers too large to be listed at once like
+ * {@link SyncUtil#getSubExpressions(IExpressionDMContext)} does.
+ * <p>
+ * Children are listed with <code>-var-list-children name from to</code>. For
+ * plain C arrays GDB would still create a variable object for every element,
+ * so a window of an array is instead read through a slice variable object,
+ * <code>(array)[from]@count</code>, which only has the children of the window.
+ * The iterator deletes the slice of a page when it moves to the next one.
+ * <p>
+ * Call {@link #dispose()} to delete the variable objects from GDB.
+ */
+public class WindowedChildren {
+
+	private static final Pattern ARRAY_TYPE = Pattern.compile(".*\\[[0-9]+\\]\\s*");
+
+	/**
+	 * A variable object: the root expression or one of its descendants.
+	 */
+	public static class Child {
+		private final String fName;
+		private final String fExpression;
+		private final int fIndex;
+		private final String fValue;
+		private final String fType;
+		private final int fNumChildren;
+		private final boolean fDynamic;
+		// Updated when the children of a dynamic variable object are listed
+		private volatile boolean fHasMore;
+		// Full expression, only needed to slice arrays, computed on demand
+		private String fPath;
+
+		Child(String name, String expression, int index, String value, String type, int numChildren,
+				boolean dynamic, boolean hasMore, String path) {
+			fName = name;
+			fExpression = expression;
+			fIndex = index;
+			fValue = value;
+			fType = type;
+			fNumChildren = numChildren;
+			fDynamic = dynamic;
+			fHasMore = hasMore;
+			fPath = path;
+		}
+
+		/** The name of the variable object in GDB */
+		public String getName() {
+			return fName;
+		}
+
+		/** The expression of the child relative to its parent, e.g. the field name */
+		public String getExpression() {
+			return fExpression;
+		}
+
+		/** The position of the child within its parent */
+		public int getIndex() {
+			return fIndex;
+		}
+
+		public String getValue() {
+			return fValue;
+		}
+
+		public String getType() {
+			return fType;
+		}
+
+		/**
+		 * The number of children, as far as GDB knows. For containers shown
+		 * by a pretty printer this may be lower than the real count, see
+		 * {@link #hasMore()}.
+		 */
+		public int getNumChildren() {
+			return fNumChildren;
+		}
+
+		/**
+		 * Whether there may be children beyond {@link #getNumChildren()}. A
+		 * dynamic child is taken to have some until its children are listed,
+		 * as GDB only tells it for the variable object being listed.
+		 */
+		public boolean hasMore() {
+			return fHasMore;
+		}
+
+		/** Whether the children come from a pretty printer */
+		public boolean isDynamic() {
+			return fDynamic;
+		}
+
+		boolean isArray() {
+			return fType != null && ARRAY_TYPE.matcher(fType).matches();
+		}
+
+		@Override
+		public String toString() {
+			return fExpression + "=" + fValue;
+		}
+	}
+
+	/**
+	 * A materialized sub-tree, see {@link WindowedChildren#materialize(int, int)}.
+	 */
+	public static class Node {
+		private final Child fChild;
+		private final List<Node> fChildren = new ArrayList<>();
+		private boolean fTruncated;
+
+		Node(Child child) {
+			fChild = child;
+		}
+
+		public Child getChild() {
+			return fChild;
+		}
+
+		public List<Node> getChildren() {
+			return Collections.unmodifiableList(fChildren);
+		}
+
+		/** Whether some children were left out because of the depth or element budget */
+		public boolean isTruncated() {
+			return fTruncated;
+		}
+	}
+
+	private static int sSliceCount;
+
+	private final IExpressionDMContext fExprDmc;
+	private Child fRoot;
+	// Variable objects created directly by us; deleting them deletes their children
+	private final List<String> fVarObjects = new ArrayList<>();
+
+	public WindowedChildren(IExpressionDMContext exprDmc) {
+		fExprDmc = exprDmc;
+	}
+
+	/**
+	 * @return the variable object of the expression itself, created on first
+	 *         use
+	 */
+	public synchronized Child getRoot() throws Throwable {
+		if (fRoot == null) {
+			final String expression = fExprDmc.getExpression();
+			Query<MIVarCreateInfo> query = new Query<MIVarCreateInfo>() {
+				@Override
+				protected void execute(DataRequestMonitor<MIVarCreateInfo> rm) {
+					SyncUtil.getGdbControl().queueCommand(
+							SyncUtil.getCommandFactory().createMIVarCreate(fExprDmc, expression), rm);
+				}
+			};
+			SyncUtil.getSession().getExecutor().execute(query);
+			MIVarCreateInfo info = query.get(DefaultTimeouts.get(ETimeout.listChildren), TimeUnit.MILLISECONDS);
+
+			fRoot = new Child(info.getName(), expression, 0, info.getValue(), info.getType(),
+					info.getNumChildren(), info.isDynamic(), info.hasMore(), expression);
+			fVarObjects.add(info.getName());
+		}
+		return fRoot;
+	}
+
+	/**
+	 * List at most <code>count</code> children of the expression, starting at
+	 * index <code>from</code>.
+	 */
+	public List<Child> getChildren(int from, int count) throws Throwable {
+		return getChildren(getRoot(), from, count);
+	}
+
+	/**
+	 * List at most <code>count</code> children of a variable object, starting
+	 * at index <code>from</code>. This is normally a single MI round trip.
+	 */
+	public synchronized List<Child> getChildren(Child parent, int from, int count) throws Throwable {
+		Window window = fetch(parent, from, count);
+		if (window.fSlice != null) {
+			fVarObjects.add(window.fSlice);
+		}
+		return window.fChildren;
+	}
+
+	/**
+	 * The children of a window, and the slice they were listed through, if
+	 * any.
+	 */
+	private static class Window {
+		final List<Child> fChildren;
+		final String fSlice;
+
+		Window(List<Child> children, String slice) {
+			fChildren = children;
+			fSlice = slice;
+		}
+	}
+
+	private Window fetch(final Child parent, final int from, int count) throws Throwable {
+		final int to = parent.hasMore() ? from + count : Math.min(from + count, parent.getNumChildren());
+		if (to <= from) {
+			return new Window(Collections.<Child> emptyList(), null);
+		}
+
+		if (parent.isArray() && parent.fPath == null) {
+			parent.fPath = getPathExpression(parent);
+		}
+
+		Query<Window> query = new Query<Window>() {
+			@Override
+			protected void execute(final DataRequestMonitor<Window> rm) {
+				ICommandControlDMContext controlDmc = SyncUtil.getGdbControl().getContext();
+				if (!parent.isArray()) {
+					SyncUtil.getGdbControl().queueCommand(
+							createListChildren(controlDmc, parent.getName(), from, to),
+							new ImmediateDataRequestMonitor<MIInfo>(rm) {
+								@Override
+								protected void handleSuccess() {
+									MIResult[] results = MIResultsUtil.getResults(getData());
+									if (parent.isDynamic()) {
+										// Only given at the top level of the list
+										parent.fHasMore = "1".equals(MIResultsUtil.getString(results, "has_more"));
+									}
+									rm.done(new Window(parseChildren(results, from, false), null));
+								}
+							});
+					return;
+				}
+
+				// Name the slice ourselves, so that listing its children
+				// does not have to wait for it to be created
+				final String sliceName = "windowedSlice" + (++sSliceCount);
+				String sliceExpression = "(" + parent.fPath + ")[" + from + "]@" + (to - from);
+				IExpressionDMContext sliceDmc = SyncUtil.getExpressions().createExpression(getFrameContext(), sliceExpression);
+
+				final List<Child> children = new ArrayList<>();
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm) {
+					@Override
+					protected void handleSuccess() {
+						rm.done(new Window(children, sliceName));
+					}
+				};
+				SyncUtil.getGdbControl().queueCommand(
+						SyncUtil.getCommandFactory().createMIVarCreate(sliceDmc, sliceName, "*", sliceExpression),
+						new DataRequestMonitor<MIVarCreateInfo>(ImmediateExecutor.getInstance(), crm));
+				SyncUtil.getGdbControl().queueCommand(
+						createListChildren(controlDmc, sliceName, 0, to - from),
+						new ImmediateDataRequestMonitor<MIInfo>(crm) {
+							@Override
+							protected void handleSuccess() {
+								// The slice numbers its elements from 0
+								children.addAll(parseChildren(MIResultsUtil.getResults(getData()), from, true));
+								crm.done();
+							}
+						});
+				crm.setDoneCount(2);
+			}
+		};
+
+		SyncUtil.getSession().getExecutor().execute(query);
+		return query.get(DefaultTimeouts.get(ETimeout.listChildren), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return an iterator over the children of the expression, fetching them
+	 *         <code>pageSize</code> at a time as it advances
+	 */
+	public Iterator<Child> iterator(int pageSize) throws Throwable {
+		return iterator(getRoot(), pageSize);
+	}
+
+	/**
+	 * For an array, the children of a page are deleted from GDB when the
+	 * iterator moves to the next page, so that walking a large array does not
+	 * keep all of its elements alive.
+	 */
+	public Iterator<Child> iterator(final Child parent, final int pageSize) {
+		assert pageSize > 0;
+		return new Iterator<Child>() {
+			private List<Child> fPage = Collections.emptyList();
+			private String fSlice;
+			private int fPageIndex;
+			private int fNextFrom;
+			private boolean fDone;
+
+			@Override
+			public boolean hasNext() {
+				if (fPageIndex < fPage.size()) {
+					return true;
+				}
+				if (fDone) {
+					return false;
+				}
+				try {
+					synchronized (WindowedChildren.this) {
+						if (fSlice != null) {
+							delete(Collections.singletonList(fSlice));
+							fVarObjects.remove(fSlice);
+						}
+						Window window = fetch(parent, fNextFrom, pageSize);
+						fPage = window.fChildren;
+						fSlice = window.fSlice;
+						if (fSlice != null) {
+							fVarObjects.add(fSlice);
+						}
+					}
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+				fPageIndex = 0;
+				fNextFrom += fPage.size();
+				fDone = fPage.size() < pageSize;
+				return !fPage.isEmpty();
+			}
+
+			@Override
+			public Child next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return fPage.get(fPageIndex++);
+			}
+		};
+	}
+
+	/**
+	 * Fetch the tree of children of the expression, breadth first, stopping
+	 * at <code>maxDepth</code> levels or once <code>maxElements</code>
+	 * children have been fetched, whichever comes first.
+	 */
+	public Node materialize(int maxDepth, int maxElements) throws Throwable {
+		Node root = new Node(getRoot());
+		List<Node> level = Collections.singletonList(root);
+		int budget = maxElements;
+
+		for (int depth = 0; !level.isEmpty(); depth++) {
+			List<Node> nextLevel = new ArrayList<>();
+			for (Node node : level) {
+				Child child = node.getChild();
+				if (child.getNumChildren() == 0 && !child.hasMore()) {
+					continue;
+				}
+				if (depth >= maxDepth || budget == 0) {
+					node.fTruncated = true;
+					continue;
+				}
+
+				List<Child> children = getChildren(child, 0, budget);
+				budget -= children.size();
+				node.fTruncated = children.size() < child.getNumChildren() || child.hasMore();
+				for (Child grandChild : children) {
+					Node childNode = new Node(grandChild);
+					node.fChildren.add(childNode);
+					nextLevel.add(childNode);
+				}
+			}
+			level = nextLevel;
+		}
+		return root;
+	}
+
+	/**
+	 * Delete every variable object created for this expression.
+	 */
+	public synchronized void dispose() throws Throwable {
+		List<String> varObjects = new ArrayList<>(fVarObjects);
+		fVarObjects.clear();
+		fRoot = null;
+		delete(varObjects);
+	}
+
+	private static void delete(final List<String> varObjects) throws Throwable {
+		Query<Object> query = new Query<Object>() {
+			@Override
+			protected void execute(DataRequestMonitor<Object> rm) {
+				ICommandControlDMContext controlDmc = SyncUtil.getGdbControl().getContext();
+				CountingRequestMonitor crm = new CountingRequestMonitor(ImmediateExecutor.getInstance(), rm);
+				for (String name : varObjects) {
+					SyncUtil.getGdbControl().queueCommand(
+							SyncUtil.getCommandFactory().createMIVarDelete(controlDmc, name),
+							new DataRequestMonitor<MIVarDeleteInfo>(ImmediateExecutor.getInstance(), crm));
+				}
+				crm.setDoneCount(varObjects.size());
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		query.get(DefaultTimeouts.get(ETimeout.listChildren), TimeUnit.MILLISECONDS);
+	}
+
+	private String getPathExpression(final Child child) throws Throwable {
+		Query<MIVarInfoPathExpressionInfo> query = new Query<MIVarInfoPathExpressionInfo>() {
+			@Override
+			protected void execute(DataRequestMonitor<MIVarInfoPathExpressionInfo> rm) {
+				SyncUtil.getGdbControl().queueCommand(
+						SyncUtil.getCommandFactory().createMIVarInfoPathExpression(
+								SyncUtil.getGdbControl().getContext(), child.getName()),
+						rm);
+			}
+		};
+		SyncUtil.getSession().getExecutor().execute(query);
+		return query.get(DefaultTimeouts.get(ETimeout.listChildren), TimeUnit.MILLISECONDS).getFullExpression();
+	}
+
+	private IDMContext getFrameContext() {
+		IFrameDMContext frameDmc = DMContexts.getAncestorOfType(fExprDmc, IFrameDMContext.class);
+		return frameDmc != null ? frameDmc : fExprDmc;
+	}
+
+	private static MICommand<MIInfo> createListChildren(ICommandControlDMContext controlDmc, String name, int from, int to) {
+		return new MICommand<MIInfo>(controlDmc, "-var-list-children",
+				new String[] { "--all-values" },
+				new String[] { name, Integer.toString(from), Integer.toString(to) });
+	}
+
+	/**
+	 * @param slice
+	 *            whether the children are the elements of an array slice,
+	 *            whose expressions have to be made relative to the array
+	 */
+	private static List<Child> parseChildren(MIResult[] results, int firstIndex, boolean slice) {
+		MIValue[] elements = MIResultsUtil.getListElements(MIResultsUtil.getValue(results, "children"));
+		List<Child> children = new ArrayList<>(elements.length);
+		for (int i = 0; i < elements.length; i++) {
+			MIResult[] child = MIResultsUtil.getTuple(elements[i]);
+			// Children carry "dynamic" rather than "has_more"
+			boolean dynamic = "1".equals(MIResultsUtil.getString(child, "dynamic"));
+			children.add(new Child(
+					MIResultsUtil.getString(child, "name"),
+					slice ? Integer.toString(firstIndex + i) : MIResultsUtil.getString(child, "exp"),
+					firstIndex + i,
+					MIResultsUtil.getString(child, "value"),
+					MIResultsUtil.getString(child, "type"),
+					MIResultsUtil.getInt(child, "numchild", 0),
+					dynamic,
+					dynamic,
+					null));
+		}
+		return children;
+	}
+}
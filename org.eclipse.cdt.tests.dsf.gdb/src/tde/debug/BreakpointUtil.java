@@ -1,6 +1,9 @@
 package tde.debug;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -9,8 +12,11 @@ import org.eclipse.cdt.debug.core.model.ICBreakpoint;
 import org.eclipse.cdt.debug.core.model.ICLineBreakpoint;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.debug.core.DebugPlugin;
 import org.eclipse.debug.core.IBreakpointManager;
 import org.eclipse.debug.core.model.IBreakpoint;
@@ -19,7 +25,7 @@ import org.eclipse.debug.core.model.ILineBreakpoint;
 public class BreakpointUtil {
 	private static final String MARKER_TYPE = "com.agilent.p9000.specs.tde.tplBreakpointMarker";
 
-	private static final String BREAKPOINT_ID = "com.agilent.p9000.specs.tde.tplBreakpoint";
+	static final String BREAKPOINT_ID = "com.agilent.p9000.specs.tde.tplBreakpoint";
 	
 	public static ILineBreakpoint toggleBreakpoint(IResource resource,
 			int linenum) throws CoreException {
@@ -37,37 +43,52 @@ public class BreakpointUtil {
 		return previous;
 	}
 	
-	public static ILineBreakpoint findBreakpoint(IResource resource,
-			int linenum) throws CoreException {
-
-		IBreakpointManager manager = DebugPlugin.getDefault()
-				.getBreakpointManager();
+	/**
+	 * Add a test plan breakpoint at each of the lines that do not have one
+	 * yet, in a single workspace operation.
+	 * 
+	 * @param persisted
+	 *            <code>false</code> for generated plans, whose breakpoints
+	 *            need not survive the session
+	 * @return the breakpoints that were added
+	 */
+	public static ILineBreakpoint[] addBreakpoints(IResource resource,
+			int[] lines, boolean persisted) throws CoreException {
+		Assert.isNotNull(resource);
+		Assert.isNotNull(lines);
 
-		if (manager != null) {
-			IBreakpoint[] breakpoints = manager.getBreakpoints(BREAKPOINT_ID);
-			for (IBreakpoint bp : breakpoints) {
-				if (bp instanceof ILineBreakpoint) {
-					if (isSame(resource, linenum, (ILineBreakpoint) bp)) {
-						return (ILineBreakpoint) bp;
-					}
-				}
+		List<Map<String, Object>> attributes = new ArrayList<Map<String, Object>>(lines.length);
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int linenum : lines) {
+			Assert.isTrue(linenum >= 0);
+			if (seen.add(linenum) && findBreakpoint(resource, linenum) == null) {
+				Map<String, Object> attrs = new HashMap<String, Object>(10);
+				fillAttributes(attrs, linenum);
+				attributes.add(attrs);
 			}
 		}
 
-		return null;
+		if (attributes.isEmpty()) {
+			return new ILineBreakpoint[0];
+		}
+		return TestplanBreakpoint.addBreakpoints(resource, MARKER_TYPE, attributes, persisted);
 	}
 
-	public static synchronized boolean isActiveTestplanBreakpoint(
+	public static ILineBreakpoint findBreakpoint(IResource resource,
+			int linenum) throws CoreException {
+		return TestplanBreakpointIndex.getDefault().find(resource, linenum);
+	}
+
+	public static boolean isActiveTestplanBreakpoint(
 			IResource resource, int[] lines) throws CoreException {
 
 		Assert.isNotNull(lines);
-		for (int linenum : lines) {
-			if (isActiveTestplanBreakpoint(resource, linenum)) {
-				return true;
-			}
-		}
+		return TestplanBreakpointIndex.getDefault().isActive(resource, lines);
+	}
 
-		return false;
+	public static boolean isActiveTestplanBreakpoint(IResource resource,
+			int fromLine, int toLine) {
+		return TestplanBreakpointIndex.getDefault().isActive(resource, fromLine, toLine);
 	}
 	
 	public static synchronized void createFunctionBreakpoint(String algname,
@@ -79,43 +100,91 @@ public class BreakpointUtil {
 	public static synchronized Map<ICBreakpoint, Boolean> setAllLineBreakpointsEnabled(
 			IResource resource, Boolean enabled)
 			throws CoreException {
+		return setLineBreakpointsEnabled(resource, enabled).toMap();
+	}
+
+	public static synchronized void restoreBreakpointsEnabled(
+			final Map<ICBreakpoint, Boolean> map) throws CoreException {
+		Assert.isNotNull(map);
 
-		Map<ICBreakpoint, Boolean> previous = new HashMap<ICBreakpoint, Boolean>();
-		
-		IBreakpointManager bm = DebugPlugin.getDefault().getBreakpointManager();
-		if (bm != null) {
-			for(IBreakpoint bp : bm.getBreakpoints()) {
-				if (bp instanceof ICLineBreakpoint) {
-					if (isSame(resource, (ICLineBreakpoint) bp)) {
-						previous.put((ICBreakpoint)bp, bp.isEnabled());
+		run(new IWorkspaceRunnable() {
+			@Override
+			public void run(IProgressMonitor monitor) throws CoreException {
+				for (Map.Entry<ICBreakpoint, Boolean> entry : map.entrySet()) {
+					ICBreakpoint bp = entry.getKey();
+					Boolean enabled = entry.getValue();
+					if (bp != null && enabled != null && bp.isEnabled() != enabled) {
 						bp.setEnabled(enabled);
-						bm.fireBreakpointChanged(bp);
 					}
 				}
-					
 			}
-		}
-		
-		return previous;
+		});
 	}
 
-	public static synchronized void restoreBreakpointsEnabled(
-			Map<ICBreakpoint, Boolean> map) throws CoreException {
-		Assert.isNotNull(map);
+	/**
+	 * Enable or disable the line breakpoints of a resource, found through the
+	 * file index of {@link PlatformBreakpointRegistry}, in a single workspace
+	 * operation.
+	 * 
+	 * @return the breakpoints that were changed, to give to
+	 *         {@link #restore(EnablementSnapshot)}
+	 */
+	public static synchronized EnablementSnapshot setLineBreakpointsEnabled(
+			IResource resource, final boolean enabled) throws CoreException {
+		Assert.isNotNull(resource);
 
-		Set<ICBreakpoint> keys = map.keySet();
-		IBreakpointManager bm = DebugPlugin.getDefault().getBreakpointManager();
-		if (keys != null && bm != null) {
-			for (ICBreakpoint bp : keys) {
-				if (bp != null) {
-					Boolean enabled = map.get(bp);
-					if (enabled != null) {
+		final List<ICBreakpoint> changed = new ArrayList<ICBreakpoint>();
+		if (resource.getLocation() != null) {
+			for (ICLineBreakpoint bp : PlatformBreakpointRegistry.getDefault()
+					.getLineBreakpoints(resource.getLocation().toString())) {
+				if (bp.isEnabled() != enabled) {
+					changed.add(bp);
+				}
+			}
+		}
+
+		if (!changed.isEmpty()) {
+			run(new IWorkspaceRunnable() {
+				@Override
+				public void run(IProgressMonitor monitor) throws CoreException {
+					for (ICBreakpoint bp : changed) {
 						bp.setEnabled(enabled);
-						bm.fireBreakpointChanged(bp);
 					}
 				}
-			}
+			});
+		}
+		return new EnablementSnapshot(resource,
+				changed.toArray(new ICBreakpoint[changed.size()]), enabled);
+	}
+
+	/**
+	 * Give back their previous state to the breakpoints of the snapshot, in a
+	 * single workspace operation. Breakpoints whose state was changed again
+	 * since the snapshot was taken are left as they are.
+	 * 
+	 * @return <code>false</code> if the snapshot had already been restored
+	 */
+	public static synchronized boolean restore(final EnablementSnapshot snapshot)
+			throws CoreException {
+		Assert.isNotNull(snapshot);
+
+		if (!snapshot.markRestored()) {
+			return false;
+		}
+		if (!snapshot.isEmpty()) {
+			run(new IWorkspaceRunnable() {
+				@Override
+				public void run(IProgressMonitor monitor) throws CoreException {
+					for (ICBreakpoint bp : snapshot.getBreakpoints()) {
+						if (bp.getMarker() != null && bp.getMarker().exists()
+								&& bp.isEnabled() == snapshot.getApplied()) {
+							bp.setEnabled(!snapshot.getApplied());
+						}
+					}
+				}
+			});
 		}
+		return true;
 	}
 
 	public static boolean isTestplanBreakpoint(IBreakpoint bp,
@@ -132,12 +201,9 @@ public class BreakpointUtil {
 		return false;
 	}
 	
-	static synchronized boolean isActiveTestplanBreakpoint(
+	static boolean isActiveTestplanBreakpoint(
 			IResource resource, int linenum) throws CoreException {
-
-		ILineBreakpoint bp = findBreakpoint(resource, linenum);
-
-		return (bp != null && bp.isEnabled());
+		return TestplanBreakpointIndex.getDefault().isActive(resource, linenum);
 	}
 	
 	private static void addBreakpoint(IResource resource, int linenum) {
@@ -171,34 +237,9 @@ public class BreakpointUtil {
 		attributes.put(IMarker.MESSAGE, "test message");
 	}
 
-	private static boolean isSame(IResource resource, int line,
-			ILineBreakpoint bp) throws CoreException {
-		if (resource != null && bp != null && line >= 0) {
-			IMarker marker = bp.getMarker();
-			if (marker != null) {
-				IResource bpresource = marker.getResource();
-				if (bpresource != null) {
-					if (bp.getLineNumber() == line
-							&& bpresource.equals(resource)) {
-						return true;
-					}
-				}
-			}
-		}
-
-		return false;
-	}
-
-	private static boolean isSame(IResource resource, ICLineBreakpoint bp)
-			throws CoreException {
-		if (resource != null && bp != null) {
-			String name = resource.getLocation().toString();
-			String fileName = bp.getFileName();
-			if (name != null && name.equals(fileName)) {
-				return true;
-			}
-		}
-
-		return false;
+	// The marker changes are then reported in one delta, and the breakpoint
+	// manager notifies its listeners once
+	private static void run(IWorkspaceRunnable runnable) throws CoreException {
+		ResourcesPlugin.getWorkspace().run(runnable, null);
 	}
 }
@@ -0,0 +1,89 @@
+package tde.debug;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.cdt.debug.core.model.ICBreakpoint;
+import org.eclipse.core.resources.IResource;
+
+/**
+ * The enablement a resource's line breakpoints had before
+ * {@link BreakpointUtil#setLineBreakpointsEnabled(IResource, boolean)}
+ * changed it, for {@link BreakpointUtil#restore(EnablementSnapshot)}.
+ * <p>
+ * Only the breakpoints that were actually changed are recorded, so a
+ * snapshot taken when every breakpoint already had the wanted state is empty
+ * and restoring it costs nothing. Each snapshot can only be restored once.
+ */
+public class EnablementSnapshot {
+
+	private final IResource fResource;
+	private final ICBreakpoint[] fBreakpoints;
+	// What the breakpoints were set to; a breakpoint changed since is left alone
+	private final boolean fApplied;
+	private boolean fRestored;
+
+	EnablementSnapshot(IResource resource, ICBreakpoint[] breakpoints, boolean applied) {
+		fResource = resource;
+		fBreakpoints = breakpoints;
+		fApplied = applied;
+	}
+
+	public IResource getResource() {
+		return fResource;
+	}
+
+	public int size() {
+		return fBreakpoints.length;
+	}
+
+	public boolean isEmpty() {
+		return fBreakpoints.length == 0;
+	}
+
+	public synchronized boolean isRestored() {
+		return fRestored;
+	}
+
+	/**
+	 * @return the changed breakpoints, whose previous state is the opposite of
+	 *         the applied one
+	 */
+	ICBreakpoint[] getBreakpoints() {
+		return fBreakpoints;
+	}
+
+	boolean getApplied() {
+		return fApplied;
+	}
+
+	/**
+	 * @return <code>false</code> if the snapshot was already restored
+	 */
+	synchronized boolean markRestored() {
+		if (fRestored) {
+			return false;
+		}
+		fRestored = true;
+		return true;
+	}
+
+	/**
+	 * @return the previous state of the changed breakpoints, in the form
+	 *         {@link BreakpointUtil#setAllLineBreakpointsEnabled(IResource, Boolean)}
+	 *         returns
+	 */
+	public Map<ICBreakpoint, Boolean> toMap() {
+		Map<ICBreakpoint, Boolean> map = new HashMap<ICBreakpoint, Boolean>();
+		for (ICBreakpoint bp : fBreakpoints) {
+			map.put(bp, !fApplied);
+		}
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return fResource + " " + fBreakpoints.length + " -> " + fApplied
+				+ (fRestored ? " (restored)" : "");
+	}
+}
@@ -0,0 +1,205 @@
+package tde.debug;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.cdt.debug.core.model.ICLineBreakpoint;
+import org.eclipse.core.resources.IMarkerDelta;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.debug.core.DebugPlugin;
+import org.eclipse.debug.core.IBreakpointManager;
+import org.eclipse.debug.core.IBreakpointsListener;
+import org.eclipse.debug.core.model.IBreakpoint;
+
+/**
+ * Index of the platform breakpoints, kept up to date from the breakpoint
+ * manager events, so that looking breakpoints up by type or by location does
+ * not copy and scan every breakpoint of the workspace.
+ * <p>
+ * The registry is created, and starts listening, on first use of
+ * {@link #getDefault()}.
+ */
+public class PlatformBreakpointRegistry implements IBreakpointsListener {
+
+	private static PlatformBreakpointRegistry sDefault;
+
+	// Insertion ordered, so that lists come out in creation order like the manager's
+	private final Set<IBreakpoint> fAll = new LinkedHashSet<>();
+	private final Map<Class<?>, Set<IBreakpoint>> fByType = new HashMap<>();
+	private final Map<String, Set<ICLineBreakpoint>> fByFile = new HashMap<>();
+	private final Map<String, Map<Integer, Set<ICLineBreakpoint>>> fByLine = new HashMap<>();
+	// Where each line breakpoint is indexed, to unindex it once it moved or went away
+	private final Map<ICLineBreakpoint, Location> fLocations = new HashMap<>();
+
+	private static class Location {
+		final String fFileName;
+		final int fLine;
+
+		Location(String fileName, int line) {
+			fFileName = fileName;
+			fLine = line;
+		}
+	}
+
+	public static synchronized PlatformBreakpointRegistry getDefault() {
+		if (sDefault == null) {
+			sDefault = new PlatformBreakpointRegistry();
+			IBreakpointManager manager = DebugPlugin.getDefault().getBreakpointManager();
+			// Listen first, so that no breakpoint added in between is missed;
+			// adding one twice is harmless
+			manager.addBreakpointListener(sDefault);
+			sDefault.breakpointsAdded(manager.getBreakpoints());
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @return the breakpoints that are instances of the given type
+	 */
+	public synchronized List<IBreakpoint> getBreakpoints(Class<?> type) {
+		Set<IBreakpoint> breakpoints = fByType.get(type);
+		if (breakpoints == null) {
+			// First lookup for this type, index it from now on
+			breakpoints = new LinkedHashSet<>();
+			for (IBreakpoint bp : fAll) {
+				if (type.isInstance(bp)) {
+					breakpoints.add(bp);
+				}
+			}
+			fByType.put(type, breakpoints);
+		}
+		return new ArrayList<IBreakpoint>(breakpoints);
+	}
+
+	public synchronized List<IBreakpoint> getAllBreakpoints() {
+		return new ArrayList<>(fAll);
+	}
+
+	/**
+	 * @return the line breakpoints of a file, as given by
+	 *         {@link ICLineBreakpoint#getFileName()}
+	 */
+	public synchronized List<ICLineBreakpoint> getLineBreakpoints(String fileName) {
+		Set<ICLineBreakpoint> breakpoints = fByFile.get(fileName);
+		return breakpoints != null ? new ArrayList<>(breakpoints) : Collections.<ICLineBreakpoint> emptyList();
+	}
+
+	/**
+	 * @return the line breakpoints at a line of a file
+	 */
+	public synchronized List<ICLineBreakpoint> getLineBreakpoints(String fileName, int line) {
+		Map<Integer, Set<ICLineBreakpoint>> lines = fByLine.get(fileName);
+		Set<ICLineBreakpoint> breakpoints = lines != null ? lines.get(line) : null;
+		return breakpoints != null ? new ArrayList<>(breakpoints) : Collections.<ICLineBreakpoint> emptyList();
+	}
+
+	public synchronized int size() {
+		return fAll.size();
+	}
+
+	@Override
+	public synchronized void breakpointsAdded(IBreakpoint[] breakpoints) {
+		for (IBreakpoint bp : breakpoints) {
+			if (!fAll.add(bp)) {
+				continue;
+			}
+			for (Map.Entry<Class<?>, Set<IBreakpoint>> entry : fByType.entrySet()) {
+				if (entry.getKey().isInstance(bp)) {
+					entry.getValue().add(bp);
+				}
+			}
+			if (bp instanceof ICLineBreakpoint) {
+				index((ICLineBreakpoint) bp);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void breakpointsRemoved(IBreakpoint[] breakpoints, IMarkerDelta[] deltas) {
+		for (IBreakpoint bp : breakpoints) {
+			if (!fAll.remove(bp)) {
+				continue;
+			}
+			for (Set<IBreakpoint> typed : fByType.values()) {
+				typed.remove(bp);
+			}
+			if (bp instanceof ICLineBreakpoint) {
+				unindex((ICLineBreakpoint) bp);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void breakpointsChanged(IBreakpoint[] breakpoints, IMarkerDelta[] deltas) {
+		// The file or the line may have changed
+		for (IBreakpoint bp : breakpoints) {
+			if (bp instanceof ICLineBreakpoint && fAll.contains(bp)) {
+				unindex((ICLineBreakpoint) bp);
+				index((ICLineBreakpoint) bp);
+			}
+		}
+	}
+
+	private void index(ICLineBreakpoint bp) {
+		Location location;
+		try {
+			location = new Location(bp.getFileName(), bp.getLineNumber());
+		} catch (CoreException e) {
+			// The marker is gone, the breakpoint is about to be removed
+			return;
+		}
+		if (location.fFileName == null) {
+			return;
+		}
+
+		fLocations.put(bp, location);
+		getOrCreate(fByFile, location.fFileName).add(bp);
+		Map<Integer, Set<ICLineBreakpoint>> lines = fByLine.get(location.fFileName);
+		if (lines == null) {
+			lines = new HashMap<>();
+			fByLine.put(location.fFileName, lines);
+		}
+		getOrCreate(lines, location.fLine).add(bp);
+	}
+
+	private void unindex(ICLineBreakpoint bp) {
+		Location location = fLocations.remove(bp);
+		if (location == null) {
+			return;
+		}
+
+		remove(fByFile, location.fFileName, bp);
+		Map<Integer, Set<ICLineBreakpoint>> lines = fByLine.get(location.fFileName);
+		if (lines != null) {
+			remove(lines, location.fLine, bp);
+			if (lines.isEmpty()) {
+				fByLine.remove(location.fFileName);
+			}
+		}
+	}
+
+	private static <K> Set<ICLineBreakpoint> getOrCreate(Map<K, Set<ICLineBreakpoint>> map, K key) {
+		Set<ICLineBreakpoint> set = map.get(key);
+		if (set == null) {
+			set = new LinkedHashSet<>();
+			map.put(key, set);
+		}
+		return set;
+	}
+
+	private static <K> void remove(Map<K, ? extends Collection<ICLineBreakpoint>> map, K key, ICLineBreakpoint bp) {
+		Collection<ICLineBreakpoint> set = map.get(key);
+		if (set != null) {
+			set.remove(bp);
+			if (set.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+}
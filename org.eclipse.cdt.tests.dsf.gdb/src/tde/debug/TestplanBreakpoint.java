@@ -1,7 +1,9 @@
 package tde.debug;
 
+import java.util.List;
 import java.util.Map;
 
+import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ResourcesPlugin;
@@ -9,6 +11,7 @@ import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.debug.core.DebugPlugin;
+import org.eclipse.debug.core.model.IBreakpoint;
 import org.eclipse.debug.core.model.LineBreakpoint;
 
 public class TestplanBreakpoint extends LineBreakpoint {
@@ -36,6 +39,50 @@ public class TestplanBreakpoint extends LineBreakpoint {
 		run(runnable);
 	}
 
+	/**
+	 * Create a breakpoint for each of the attribute maps in a single workspace
+	 * operation, and register them all with one call to the breakpoint
+	 * manager.
+	 * 
+	 * @param persisted
+	 *            <code>false</code> for breakpoints of generated plans, whose
+	 *            markers are then neither saved with the workspace nor
+	 *            restored on restart
+	 */
+	public static TestplanBreakpoint[] addBreakpoints(final IResource resource,
+			final String markerType, final List<Map<String, Object>> attributes,
+			final boolean persisted) throws CoreException {
+
+		final TestplanBreakpoint[] breakpoints = new TestplanBreakpoint[attributes.size()];
+		IWorkspaceRunnable runnable = new IWorkspaceRunnable() {
+			@Override
+			public void run(IProgressMonitor monitor) throws CoreException {
+				for (int i = 0; i < breakpoints.length; i++) {
+					IMarker marker = resource.createMarker(markerType);
+					// One attribute change per marker, persistence included
+					Map<String, Object> markerAttributes = attributes.get(i);
+					markerAttributes.put(IBreakpoint.PERSISTED, persisted);
+					if (!persisted) {
+						markerAttributes.put(IMarker.TRANSIENT, true);
+					}
+					marker.setAttributes(markerAttributes);
+
+					breakpoints[i] = new TestplanBreakpoint();
+					breakpoints[i].setMarker(marker);
+				}
+				DebugPlugin.getDefault().getBreakpointManager().addBreakpoints(breakpoints);
+			}
+		};
+
+		// The whole resource is locked once instead of once per breakpoint
+		try {
+			ResourcesPlugin.getWorkspace().run(runnable, resource, 0, null);
+		} catch (CoreException e) {
+			throw new DebugException(e.getStatus());
+		}
+		return breakpoints;
+	}
+
 	@Override
 	public String getModelIdentifier() {
 		return BREAKPOINT_ID;
@@ -0,0 +1,273 @@
+package tde.debug;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IMarkerDelta;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.debug.core.DebugPlugin;
+import org.eclipse.debug.core.IBreakpointManager;
+import org.eclipse.debug.core.IBreakpointsListener;
+import org.eclipse.debug.core.model.IBreakpoint;
+import org.eclipse.debug.core.model.ILineBreakpoint;
+
+/**
+ * Index of the test plan breakpoints by resource and line.
+ * <p>
+ * Each resource maps to an immutable snapshot of its breakpoints sorted by
+ * line, which is replaced as a whole whenever one of them is added, removed
+ * or changed. Lookups therefore take no lock: a line is found with a binary
+ * search, and a range of lines with two.
+ */
+public class TestplanBreakpointIndex implements IBreakpointsListener {
+
+	private static final class Lines {
+		static final Lines EMPTY = new Lines(new int[0], new ILineBreakpoint[0], new boolean[0]);
+
+		final int[] fLines;
+		final ILineBreakpoint[] fBreakpoints;
+		final boolean[] fEnabled;
+
+		Lines(int[] lines, ILineBreakpoint[] breakpoints, boolean[] enabled) {
+			fLines = lines;
+			fBreakpoints = breakpoints;
+			fEnabled = enabled;
+		}
+
+		/* Index of the first breakpoint at or after the line */
+		int lowerBound(int line) {
+			int low = 0;
+			int high = fLines.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (fLines[mid] < line) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	private static final class Entry {
+		final int fLine;
+		final ILineBreakpoint fBreakpoint;
+		final boolean fEnabled;
+
+		Entry(int line, ILineBreakpoint breakpoint, boolean enabled) {
+			fLine = line;
+			fBreakpoint = breakpoint;
+			fEnabled = enabled;
+		}
+	}
+
+	private static TestplanBreakpointIndex sDefault;
+
+	// Read without locking
+	private final Map<IResource, Lines> fSnapshots = new ConcurrentHashMap<>();
+	// Only accessed by the synchronized listener methods
+	private final Map<IResource, Set<ILineBreakpoint>> fMembers = new HashMap<>();
+	private final Map<ILineBreakpoint, IResource> fResources = new HashMap<>();
+
+	public static synchronized TestplanBreakpointIndex getDefault() {
+		if (sDefault == null) {
+			sDefault = new TestplanBreakpointIndex();
+			IBreakpointManager manager = DebugPlugin.getDefault().getBreakpointManager();
+			manager.addBreakpointListener(sDefault);
+			sDefault.breakpointsAdded(manager.getBreakpoints(BreakpointUtil.BREAKPOINT_ID));
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @return a test plan breakpoint at this line of the resource, or
+	 *         <code>null</code>
+	 */
+	public ILineBreakpoint find(IResource resource, int linenum) {
+		Lines lines = getLines(resource);
+		int i = lines.lowerBound(linenum);
+		return i < lines.fLines.length && lines.fLines[i] == linenum ? lines.fBreakpoints[i] : null;
+	}
+
+	public boolean isActive(IResource resource, int linenum) {
+		return isActive(resource, linenum, linenum);
+	}
+
+	/**
+	 * @return whether there is an enabled test plan breakpoint at any of the
+	 *         lines
+	 */
+	public boolean isActive(IResource resource, int[] linenums) {
+		Lines lines = getLines(resource);
+		for (int linenum : linenums) {
+			for (int i = lines.lowerBound(linenum); i < lines.fLines.length && lines.fLines[i] == linenum; i++) {
+				if (lines.fEnabled[i]) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether there is an enabled test plan breakpoint between the two
+	 *         lines, inclusively
+	 */
+	public boolean isActive(IResource resource, int fromLine, int toLine) {
+		Lines lines = getLines(resource);
+		for (int i = lines.lowerBound(fromLine); i < lines.fLines.length && lines.fLines[i] <= toLine; i++) {
+			if (lines.fEnabled[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the sorted lines of the resource that have a test plan
+	 *         breakpoint
+	 */
+	public int[] getLineNumbers(IResource resource) {
+		return getLines(resource).fLines.clone();
+	}
+
+	/**
+	 * @return the resources that have test plan breakpoints
+	 */
+	public Set<IResource> getResources() {
+		return new HashSet<>(fSnapshots.keySet());
+	}
+
+	/**
+	 * @return for each line of the resource that has a test plan breakpoint,
+	 *         whether one of its breakpoints is enabled, in line order
+	 */
+	public Map<Integer, Boolean> getLineStates(IResource resource) {
+		Lines lines = getLines(resource);
+		Map<Integer, Boolean> states = new LinkedHashMap<>();
+		for (int i = 0; i < lines.fLines.length; i++) {
+			Boolean enabled = states.get(lines.fLines[i]);
+			states.put(lines.fLines[i], (enabled != null && enabled) || lines.fEnabled[i]);
+		}
+		return states;
+	}
+
+	private Lines getLines(IResource resource) {
+		Lines lines = resource != null ? fSnapshots.get(resource) : null;
+		return lines != null ? lines : Lines.EMPTY;
+	}
+
+	@Override
+	public synchronized void breakpointsAdded(IBreakpoint[] breakpoints) {
+		Set<IResource> changed = new HashSet<>();
+		for (IBreakpoint bp : breakpoints) {
+			IResource resource = getResource(bp);
+			if (resource != null) {
+				Set<ILineBreakpoint> members = fMembers.get(resource);
+				if (members == null) {
+					members = new LinkedHashSet<>();
+					fMembers.put(resource, members);
+				}
+				members.add((ILineBreakpoint) bp);
+				fResources.put((ILineBreakpoint) bp, resource);
+				changed.add(resource);
+			}
+		}
+		publish(changed);
+	}
+
+	@Override
+	public synchronized void breakpointsRemoved(IBreakpoint[] breakpoints, IMarkerDelta[] deltas) {
+		Set<IResource> changed = new HashSet<>();
+		for (IBreakpoint bp : breakpoints) {
+			// The marker may already be gone, use the resource it was indexed under
+			IResource resource = fResources.remove(bp);
+			if (resource != null) {
+				fMembers.get(resource).remove(bp);
+				changed.add(resource);
+			}
+		}
+		publish(changed);
+	}
+
+	@Override
+	public synchronized void breakpointsChanged(IBreakpoint[] breakpoints, IMarkerDelta[] deltas) {
+		// Lines and enablement are only read when publishing
+		Set<IResource> changed = new HashSet<>();
+		for (IBreakpoint bp : breakpoints) {
+			IResource resource = fResources.get(bp);
+			if (resource != null) {
+				changed.add(resource);
+			}
+		}
+		publish(changed);
+	}
+
+	private void publish(Set<IResource> resources) {
+		for (IResource resource : resources) {
+			Set<ILineBreakpoint> members = fMembers.get(resource);
+			if (members == null || members.isEmpty()) {
+				fMembers.remove(resource);
+				fSnapshots.remove(resource);
+				continue;
+			}
+
+			List<Entry> entries = new ArrayList<>(members.size());
+			for (ILineBreakpoint bp : members) {
+				try {
+					entries.add(new Entry(bp.getLineNumber(), bp, bp.isEnabled()));
+				} catch (CoreException e) {
+					// The marker is being deleted; the removal will follow
+				}
+			}
+			Collections.sort(entries, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry e1, Entry e2) {
+					return Integer.compare(e1.fLine, e2.fLine);
+				}
+			});
+
+			int[] lines = new int[entries.size()];
+			ILineBreakpoint[] bps = new ILineBreakpoint[entries.size()];
+			boolean[] enabled = new boolean[entries.size()];
+			for (int i = 0; i < lines.length; i++) {
+				lines[i] = entries.get(i).fLine;
+				bps[i] = entries.get(i).fBreakpoint;
+				enabled[i] = entries.get(i).fEnabled;
+			}
+			fSnapshots.put(resource, new Lines(lines, bps, enabled));
+		}
+	}
+
+	private static IResource getResource(IBreakpoint bp) {
+		if (bp instanceof ILineBreakpoint && BreakpointUtil.BREAKPOINT_ID.equals(bp.getModelIdentifier())) {
+			IMarker marker = bp.getMarker();
+			if (marker != null) {
+				return marker.getResource();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<IResource, Lines> entry : fSnapshots.entrySet()) {
+			builder.append(entry.getKey()).append(Arrays.toString(entry.getValue().fLines)).append('\n');
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,273 @@
+package tde.debug;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IMarkerDelta;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.debug.core.DebugPlugin;
+import org.eclipse.debug.core.IBreakpointsListener;
+import org.eclipse.debug.core.model.IBreakpoint;
+
+/**
+ * Installs the test plan breakpoints in GDB.
+ * <p>
+ * Changes to the test plan breakpoints only schedule a synchronization, so
+ * that a burst of edits, such as rapid toggling through
+ * {@link BreakpointUtil#toggleBreakpoint(IResource, int)}, ends up in GDB as
+ * one batch. Synchronizing turns the lines of
+ * {@link TestplanBreakpointIndex} into GDB locations with a
+ * {@link LocationResolver}, compares them with the GDB breakpoints this
+ * synchronizer installed, as seen by a {@link BreakpointTarget}, and applies
+ * the differences with one <code>-break-delete</code>, pipelined
+ * <code>-break-insert</code>s, and one <code>-break-enable</code> and
+ * <code>-break-disable</code>. Intermediate states never reach GDB, and the
+ * breakpoints installed by others are left alone.
+ * <p>
+ * A location GDB refuses does not keep the others out: they are installed
+ * and tracked, and the refused one is tried again at the next
+ * synchronization.
+ */
+public class TestplanBreakpointSynchronizer implements IBreakpointsListener {
+
+	/**
+	 * Where GDB should stop for a line of a test plan.
+	 */
+	public interface LocationResolver {
+		/**
+		 * @return a location for <code>-break-insert</code>, such as the
+		 *         function of the algorithm in its .cpp resource, see
+		 *         {@link TestplanBreakpointSynchronizer#getFunctionLocation(IResource, String)},
+		 *         or <code>null</code> if the line has none
+		 */
+		String resolve(IResource resource, int line);
+	}
+
+	/**
+	 * The GDB breakpoints, as the test framework's breakpoint table mirrors
+	 * them.
+	 */
+	public interface BreakpointTarget {
+		/**
+		 * @return whether the breakpoint is enabled, or <code>null</code> if
+		 *         GDB no longer has it
+		 */
+		Boolean isEnabled(String number);
+
+		/**
+		 * Insert a breakpoint at each of the locations, or none if one is
+		 * refused.
+		 *
+		 * @return the breakpoint numbers, in the order of the locations
+		 */
+		String[] insert(List<String> locations) throws Throwable;
+
+		void delete(Collection<String> numbers) throws Throwable;
+
+		void setEnabled(Collection<String> numbers, boolean enabled) throws Throwable;
+	}
+
+	private static final String PLUGIN_ID = "com.agilent.p9000.specs.tde"; //$NON-NLS-1$
+
+	// Edits arriving within this delay are synchronized together
+	private static final long DELAY = 50;
+
+	private final BreakpointTarget fTarget;
+	private final LocationResolver fResolver;
+	private final TestplanBreakpointIndex fIndex = TestplanBreakpointIndex.getDefault();
+	// GDB breakpoint number of each installed location; guarded by fSyncLock
+	private final Map<String, String> fInstalled = new HashMap<>();
+	private final Object fSyncLock = new Object();
+	private volatile boolean fDisposed;
+
+	private final Job fJob = new Job("Synchronize test plan breakpoints") { //$NON-NLS-1$
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				synchronize();
+			} catch (Throwable e) {
+				return new Status(IStatus.ERROR, PLUGIN_ID,
+						"Failed to synchronize the test plan breakpoints", e); //$NON-NLS-1$
+			}
+			return Status.OK_STATUS;
+		}
+	};
+
+	/**
+	 * Start installing the test plan breakpoints through the target, the
+	 * existing ones first, at the locations the resolver gives for their
+	 * lines.
+	 */
+	public TestplanBreakpointSynchronizer(BreakpointTarget target, LocationResolver resolver) {
+		fTarget = target;
+		fResolver = resolver;
+		fJob.setSystem(true);
+		DebugPlugin.getDefault().getBreakpointManager().addBreakpointListener(this);
+		fJob.schedule();
+	}
+
+	/**
+	 * Stop following the test plan breakpoints. The breakpoints already
+	 * installed stay in GDB.
+	 */
+	public void dispose() {
+		fDisposed = true;
+		DebugPlugin.getDefault().getBreakpointManager().removeBreakpointListener(this);
+		fJob.cancel();
+	}
+
+	/**
+	 * Apply the pending changes now, in the calling thread, which must not be
+	 * the session executor.
+	 */
+	public void flush() throws Throwable {
+		synchronize();
+	}
+
+	/**
+	 * @return the number of the GDB breakpoint installed for a line, or
+	 *         <code>null</code>
+	 */
+	public String getNumber(IResource resource, int line) {
+		String location = fResolver.resolve(resource, line);
+		if (location == null) {
+			return null;
+		}
+		synchronized (fSyncLock) {
+			return fInstalled.get(location);
+		}
+	}
+
+	/**
+	 * @return the location of a function of a source file, where the test
+	 *         plan breakpoints were mirrored with
+	 *         {@link BreakpointUtil#createFunctionBreakpoint(String, IResource)}
+	 */
+	public static String getFunctionLocation(IResource cppResource, String function) {
+		IPath path = cppResource.getLocation();
+		return path != null ? path.toOSString() + ":" + function : function; //$NON-NLS-1$
+	}
+
+	@Override
+	public void breakpointsAdded(IBreakpoint[] breakpoints) {
+		scheduleIfTestplan(breakpoints);
+	}
+
+	@Override
+	public void breakpointsRemoved(IBreakpoint[] breakpoints, IMarkerDelta[] deltas) {
+		scheduleIfTestplan(breakpoints);
+	}
+
+	@Override
+	public void breakpointsChanged(IBreakpoint[] breakpoints, IMarkerDelta[] deltas) {
+		scheduleIfTestplan(breakpoints);
+	}
+
+	private void scheduleIfTestplan(IBreakpoint[] breakpoints) {
+		for (IBreakpoint bp : breakpoints) {
+			if (BreakpointUtil.BREAKPOINT_ID.equals(bp.getModelIdentifier())) {
+				// A job scheduled while running runs again once done, so no
+				// change is missed
+				fJob.schedule(DELAY);
+				return;
+			}
+		}
+	}
+
+	private void synchronize() throws Throwable {
+		synchronized (fSyncLock) {
+			if (fDisposed) {
+				return;
+			}
+
+			// Where there should be a breakpoint, and whether enabled; several
+			// lines may stop at the same location, which is enabled if any is
+			Map<String, Boolean> wanted = new LinkedHashMap<>();
+			for (IResource resource : fIndex.getResources()) {
+				for (Map.Entry<Integer, Boolean> line : fIndex.getLineStates(resource).entrySet()) {
+					String location = fResolver.resolve(resource, line.getKey());
+					if (location != null) {
+						wanted.put(location, line.getValue() || Boolean.TRUE.equals(wanted.get(location)));
+					}
+				}
+			}
+
+			List<String> deleted = new ArrayList<>();
+			List<String> enabled = new ArrayList<>();
+			List<String> disabled = new ArrayList<>();
+			for (Map.Entry<String, String> entry : new ArrayList<>(fInstalled.entrySet())) {
+				Boolean isEnabled = fTarget.isEnabled(entry.getValue());
+				Boolean enable = wanted.get(entry.getKey());
+				if (isEnabled == null) {
+					// Deleted from GDB behind our back, install it again if still wanted
+					fInstalled.remove(entry.getKey());
+				} else if (enable == null) {
+					deleted.add(entry.getValue());
+				} else if (!isEnabled.equals(enable)) {
+					(enable ? enabled : disabled).add(entry.getValue());
+				}
+			}
+
+			List<String> inserted = new ArrayList<>();
+			for (String location : wanted.keySet()) {
+				if (!fInstalled.containsKey(location)) {
+					inserted.add(location);
+				}
+			}
+
+			fTarget.delete(deleted);
+			fInstalled.values().removeAll(deleted);
+
+			Throwable failure = null;
+			try {
+				String[] numbers = fTarget.insert(inserted);
+				for (int i = 0; i < numbers.length; i++) {
+					installed(inserted.get(i), numbers[i], wanted, disabled);
+				}
+			} catch (Throwable e) {
+				// Nothing of the batch was kept; insert the locations one at a
+				// time so that only the refused ones are left out
+				for (String location : inserted) {
+					try {
+						installed(location, fTarget.insert(Collections.singletonList(location))[0], wanted,
+								disabled);
+					} catch (Throwable e1) {
+						if (failure == null) {
+							failure = e1;
+						}
+					}
+				}
+			}
+
+			fTarget.setEnabled(enabled, true);
+			fTarget.setEnabled(disabled, false);
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private void installed(String location, String number, Map<String, Boolean> wanted, List<String> disabled) {
+		fInstalled.put(location, number);
+		if (!wanted.get(location)) {
+			disabled.add(number);
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (fSyncLock) {
+			return fInstalled.toString();
+		}
+	}
+}